@@ -0,0 +1,359 @@
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server side admission control.
+ * Every check is a plain read or a compare-and-set on an atomic, so admission never
+ * blocks and never takes a lock. A limit of 0 disables that check.
+ * While draining, every new call is rejected so that the calls already admitted can finish.
+ * While held for a handoff, new calls wait instead, see {@link #hold(long)}.
+ */
+public class AdmissionController {
+    private static final int OPEN = 0;
+    private static final int DRAINING = 1;
+    private static final int HELD = 2;
+    private static final int MOVED = 3;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxInFlight;
+    private final int maxDelayedPops;
+
+    // Per client theoretical arrival time of the next call, see tryAcquireToken
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger delayedPops = new AtomicInteger();
+    // Every admitted call that has not exited yet, counted whatever the limits, see drain
+    private final LongAdder running = new LongAdder();
+    // Admitted calls blocked without touching the state, see beginWait
+    private final LongAdder waiting = new LongAdder();
+    private volatile int state = OPEN;
+    // A client let past the rate limit, such as the warm-up's scratch client, see setExempt
+    private volatile String exempt;
+    // Released when a hold ends
+    private volatile CountDownLatch gate;
+
+    /**
+     * Create a controller configured from the calculator.rateLimit, calculator.rateBurst,
+     * calculator.maxInFlight and calculator.maxDelayedPops system properties
+     */
+    public AdmissionController() {
+        this(Double.parseDouble(System.getProperty("calculator.rateLimit", "0")),
+                Integer.getInteger("calculator.rateBurst", 1),
+                Integer.getInteger("calculator.maxInFlight", 0),
+                Integer.getInteger("calculator.maxDelayedPops", 0));
+    }
+
+    /**
+     * @param callsPerSecond sustained calls per second allowed for each client, 0 for no limit
+     * @param burst          calls a client may make at once on top of the sustained rate
+     * @param maxInFlight    calls executing at once across all clients, 0 for no limit
+     * @param maxDelayedPops delayPop calls waiting at once across all clients, 0 for no limit
+     */
+    public AdmissionController(double callsPerSecond, int burst, int maxInFlight, int maxDelayedPops) {
+        this.intervalNanos = callsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / callsPerSecond) : 0;
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+        this.maxInFlight = maxInFlight;
+        this.maxDelayedPops = maxDelayedPops;
+    }
+
+    /**
+     * Admit a call, it must be paired with {@link #exit()} once the call is done.
+     * While a handoff holds the server the call waits here until it is released.
+     *
+     * @param clientID the calling client
+     * @throws AdmissionRejectedException throws if the client or the server is over its limit
+     * @throws StateMovedException       throws if the server handed its state to another one
+     */
+    public void enter(String clientID) throws RemoteException {
+        if (intervalNanos > 0 && !clientID.equals(exempt) && !tryAcquireToken(clientID)) {
+            throw new AdmissionRejectedException("Rate limit exceeded for client " + clientID);
+        }
+        while (true) {
+            if (maxInFlight > 0 && inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                throw new AdmissionRejectedException("Too many calls in flight");
+            }
+            // Count the call before checking the state, so drain and hold either see the call
+            // or the call sees their state
+            running.increment();
+            if (state == OPEN) {
+                return;
+            }
+            exit();
+            awaitState();
+        }
+    }
+
+    /**
+     * Let the calls of one client past the rate limit, the in-flight limit still applies
+     *
+     * @param clientID the client to exempt, null to exempt none
+     */
+    public void setExempt(String clientID) {
+        this.exempt = clientID;
+    }
+
+    /**
+     * @return true if calls are limited per client, so that there are buckets to prune
+     */
+    public boolean isRateLimited() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Drop the buckets of clients that made no call for a while. A bucket whose next arrival
+     * time has passed allows a full burst, as a new bucket does, so dropping it changes nothing
+     * for its client. A call racing with the removal may update the dropped bucket and so
+     * go uncounted, which at worst grants that client one more call.
+     *
+     * @param idleNanos how far the next arrival time must lie in the past
+     * @return the number of buckets dropped
+     */
+    public int pruneBuckets(long idleNanos) {
+        long now = System.nanoTime();
+        int pruned = 0;
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+            if (now - entry.getValue().get() > idleNanos && buckets.remove(entry.getKey(), entry.getValue())) {
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Drop the rate limit state of a client that was evicted, its next call starts with a full burst
+     *
+     * @param clientID the client that was evicted
+     */
+    public void forget(String clientID) {
+        buckets.remove(clientID);
+    }
+
+    /**
+     * Report how far each client's rate limit runs ahead of now, used when handing the state
+     * to another server. The buckets hold System.nanoTime values, which mean nothing in
+     * another process, so only the distance from now is handed over.
+     *
+     * @return the nanoseconds until each client is back to a full burst, for the clients not there yet
+     */
+    public Map<String, Long> debts() {
+        Map<String, Long> debts = new HashMap<>();
+        long now = System.nanoTime();
+        buckets.forEach((clientID, bucket) -> {
+            long ahead = bucket.get() - now;
+            if (ahead > 0) {
+                debts.put(clientID, ahead);
+            }
+        });
+        return debts;
+    }
+
+    /**
+     * Take over how much of its burst a client used on another server
+     *
+     * @param clientID the client
+     * @param nanos    the nanoseconds until the client is back to a full burst
+     */
+    public void restoreDebt(String clientID, long nanos) {
+        buckets.put(clientID, new AtomicLong(System.nanoTime() + nanos));
+    }
+
+    /**
+     * Release a call admitted by {@link #enter(String)}
+     */
+    public void exit() {
+        running.decrement();
+        if (maxInFlight > 0) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Start rejecting new calls and wait for the admitted ones to finish
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if no call was in flight when the method returned
+     * @throws InterruptedException throws if interrupted while waiting
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        state = DRAINING;
+        return awaitIdle(timeoutMillis, false);
+    }
+
+    /**
+     * Admit new calls again after {@link #drain(long)}
+     */
+    public void resume() {
+        state = OPEN;
+    }
+
+    public boolean isDraining() {
+        return state == DRAINING;
+    }
+
+    /**
+     * @return the number of admitted calls that have not finished yet
+     */
+    public long getInFlight() {
+        return running.sum();
+    }
+
+    /**
+     * Make new calls wait and wait for the admitted ones to finish or to block in
+     * {@link #beginWait()}, so that the state can be copied while nothing changes it.
+     * Must be followed by {@link #release(boolean)}.
+     *
+     * @param timeoutMillis the longest time to wait for the admitted calls
+     * @return true if no call was active when the method returned
+     * @throws InterruptedException throws if interrupted while waiting
+     */
+    public boolean hold(long timeoutMillis) throws InterruptedException {
+        gate = new CountDownLatch(1);
+        state = HELD;
+        return awaitIdle(timeoutMillis, true);
+    }
+
+    /**
+     * Let the calls waiting since {@link #hold(long)} go on
+     *
+     * @param moved true if the state now lives on another server, the waiting calls then
+     *              fail with StateMovedException so that clients look the calculator up again
+     */
+    public void release(boolean moved) {
+        state = moved ? MOVED : OPEN;
+        gate.countDown();
+    }
+
+    /**
+     * Mark the calling thread as blocked without touching the state, such as during the
+     * sleep of a delayed pop, so that a hold does not wait for it
+     */
+    public void beginWait() {
+        waiting.increment();
+    }
+
+    /**
+     * End a {@link #beginWait()}, the caller must call {@link #awaitOpen()} before changing state
+     */
+    public void endWait() {
+        waiting.decrement();
+    }
+
+    /**
+     * Wait until a hold is released, for calls that end a wait and go on to change state
+     *
+     * @throws RemoteException throws if the server handed its state to another one meanwhile
+     */
+    public void awaitOpen() throws RemoteException {
+        while (state >= HELD) {
+            waiting.increment();
+            try {
+                awaitState();
+            } finally {
+                waiting.decrement();
+            }
+        }
+    }
+
+    /**
+     * Block or fail a call that found the server not open
+     */
+    private void awaitState() throws RemoteException {
+        switch (state) {
+            case DRAINING:
+                throw new AdmissionRejectedException("Server is draining");
+            case MOVED:
+                throw new StateMovedException("Calculator state moved to another server");
+            case HELD:
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AdmissionRejectedException("Interrupted while the server was held");
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Poll until no admitted call is running
+     *
+     * @param timeoutMillis  the longest time to wait
+     * @param ignoreWaiting  true to not wait for calls blocked between beginWait and endWait
+     * @return true if no call was running when the method returned
+     */
+    private boolean awaitIdle(long timeoutMillis, boolean ignoreWaiting) throws InterruptedException {
+        long start = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (running.sum() - (ignoreWaiting ? waiting.sum() : 0) > 0) {
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= timeoutNanos) {
+                return false;
+            }
+            // Calls usually finish within microseconds, so spin for a moment before sleeping
+            if (elapsed < TimeUnit.MILLISECONDS.toNanos(1)) {
+                Thread.onSpinWait();
+            } else {
+                Thread.sleep(1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Admit a delayed pop, it must be paired with {@link #exitDelayed()}
+     *
+     * @throws AdmissionRejectedException throws if too many delayed pops are waiting
+     */
+    public void enterDelayed() throws AdmissionRejectedException {
+        if (maxDelayedPops > 0 && delayedPops.incrementAndGet() > maxDelayedPops) {
+            delayedPops.decrementAndGet();
+            throw new AdmissionRejectedException("Too many delayed pops waiting");
+        }
+    }
+
+    /**
+     * Release a delayed pop admitted by {@link #enterDelayed()}
+     */
+    public void exitDelayed() {
+        if (maxDelayedPops > 0) {
+            delayedPops.decrementAndGet();
+        }
+    }
+
+    /**
+     * Token bucket in its virtual scheduling form: a single timestamp per client records
+     * when the bucket will be full again, and each call pushes it forward by one interval.
+     * A call is admitted while that timestamp is less than the burst ahead of now.
+     *
+     * @param clientID the calling client
+     * @return true if the client had a token left
+     */
+    private boolean tryAcquireToken(String clientID) {
+        AtomicLong bucket = buckets.get(clientID);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(clientID, k -> new AtomicLong(System.nanoTime()));
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = bucket.get();
+            long next = Math.max(arrival, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+}
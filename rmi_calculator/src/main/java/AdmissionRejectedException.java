@@ -0,0 +1,19 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown when the server refuses a call because a client or the server is over its limits.
+ * The call has not been executed, so the client may retry it after backing off.
+ */
+public class AdmissionRejectedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public AdmissionRejectedException(String message) {
+        super(message);
+    }
+
+    // Rejections are expected under load, so skip the cost of capturing a stack trace
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -1,17 +1,57 @@
+import java.math.BigInteger;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.server.ServerNotActiveException;
+import java.util.List;
 
 public interface Calculator extends Remote {
     void pushValue(int val,String clientID) throws RemoteException;
 
+    void pushValues(PackedValues values,String clientID) throws RemoteException;
+
     void pushOperation(String operator,String clientID) throws RemoteException, ServerNotActiveException;
 
+    void pushOperation(String operator,int count,String clientID) throws RemoteException, ServerNotActiveException;
+
+    void pushWideOperation(String operator,String clientID) throws RemoteException;
+
+    void pushWideOperation(String operator,int count,String clientID) throws RemoteException;
+
     int pop(String clientID) throws RemoteException, ServerNotActiveException;
 
+    long popLong(String clientID) throws RemoteException;
+
+    BigInteger popBig(String clientID) throws RemoteException;
+
+    PackedValues popValues(int count,String clientID) throws RemoteException, ServerNotActiveException;
+
     boolean isEmpty(String clientID) throws RemoteException;
 
+    int size(String clientID) throws RemoteException;
+
+    int peek(String clientID) throws RemoteException;
+
+    boolean compareAndPop(int expected,String clientID) throws RemoteException;
+
+    void swap(String clientID) throws RemoteException;
+
+    void dup(String clientID) throws RemoteException;
+
+    int[] atomically(List<StackOp> ops,String clientID) throws RemoteException;
+
     int delayPop(int millis,String clientID) throws RemoteException, ServerNotActiveException;
 
+    int awaitPop(long timeoutMillis,String clientID) throws RemoteException, ServerNotActiveException;
+
+    long schedule(List<StackOp> ops,long delayMillis,String clientID) throws RemoteException;
+
+    long scheduleAtFixedRate(List<StackOp> ops,long delayMillis,long periodMillis,String clientID) throws RemoteException;
+
+    boolean cancelScheduled(long id,String clientID) throws RemoteException;
+
+    void subscribe(CalculatorListener listener,String clientID) throws RemoteException;
+
+    void unsubscribe(CalculatorListener listener,String clientID) throws RemoteException;
+
 
 }
\ No newline at end of file
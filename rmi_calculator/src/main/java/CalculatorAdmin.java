@@ -0,0 +1,25 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface CalculatorAdmin extends Remote {
+    ClientUsage getClientUsage(String clientID) throws RemoteException;
+
+    void setQuota(int maxDepth,long maxBytes) throws RemoteException;
+
+    List<HotClient> getTopClientsByCalls(int k,int windowSeconds) throws RemoteException;
+
+    List<HotClient> getTopClientsByValues(int k,int windowSeconds) throws RemoteException;
+
+    CalculatorStats getStats() throws RemoteException;
+
+    List<LaneStats> getLaneStats() throws RemoteException;
+
+    int getClientDepth(String clientID) throws RemoteException;
+
+    int evictClient(String clientID) throws RemoteException;
+
+    boolean drain(long timeoutMillis) throws RemoteException;
+
+    void resume() throws RemoteException;
+}
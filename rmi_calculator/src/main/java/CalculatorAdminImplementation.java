@@ -0,0 +1,142 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+/**
+ * Administrative view of a calculator, exported separately so that clients of the
+ * Calculator binding cannot reach it
+ */
+public class CalculatorAdminImplementation extends UnicastRemoteObject implements CalculatorAdmin {
+    private static final long serialVersionUID = 1L;
+
+    private final CalculatorImplementation calculator;
+
+    public CalculatorAdminImplementation(CalculatorImplementation calculator) throws RemoteException {
+        super();
+        this.calculator = calculator;
+    }
+
+    /**
+     * Get the resources currently held by a client
+     *
+     * @param clientID the client to inspect
+     * @return the client's usage, all zero for unknown clients
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public ClientUsage getClientUsage(String clientID) throws RemoteException {
+        return calculator.getClientUsage(clientID);
+    }
+
+    /**
+     * Change the per-client quotas, existing stacks above them are not trimmed
+     *
+     * @param maxDepth the maximum number of values per client, 0 for no limit
+     * @param maxBytes the maximum estimated bytes per client, 0 for no limit
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public void setQuota(int maxDepth, long maxBytes) throws RemoteException {
+        calculator.setQuota(maxDepth, maxBytes);
+    }
+
+    /**
+     * Report the clients making the most calls, counts are estimates that never undercount
+     *
+     * @param k             the number of clients to report
+     * @param windowSeconds the length of the window, at most 60 seconds
+     * @return up to k clients, busiest first
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public List<HotClient> getTopClientsByCalls(int k, int windowSeconds) throws RemoteException {
+        return calculator.getTopClientsByCalls(k, windowSeconds);
+    }
+
+    /**
+     * Report the clients storing the most values by the deepest their stack got within the window,
+     * depths are estimates that never undercount
+     *
+     * @param k             the number of clients to report
+     * @param windowSeconds the length of the window, at most 60 seconds
+     * @return up to k clients, deepest first
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public List<HotClient> getTopClientsByValues(int k, int windowSeconds) throws RemoteException {
+        return calculator.getTopClientsByValues(k, windowSeconds);
+    }
+
+    /**
+     * Get the server wide counters
+     *
+     * @return the counters, with the call rate since the previous call to this method
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public CalculatorStats getStats() throws RemoteException {
+        return calculator.getStats();
+    }
+
+    /**
+     * Report the queue time and latency of every lane
+     *
+     * @return the counters in lane order, empty if lanes are disabled
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public List<LaneStats> getLaneStats() throws RemoteException {
+        return calculator.getLaneStats();
+    }
+
+    /**
+     * Get the depth of a client's stack
+     *
+     * @param clientID the client to inspect
+     * @return the number of values on the stack, 0 for unknown clients
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public int getClientDepth(String clientID) throws RemoteException {
+        return calculator.getClientDepth(clientID);
+    }
+
+    /**
+     * Drop a client together with all its values, scheduled operations, subscriptions and rate limit
+     *
+     * @param clientID the client to drop
+     * @return the number of values dropped, 0 for unknown clients
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public int evictClient(String clientID) throws RemoteException {
+        return calculator.evictClient(clientID);
+    }
+
+    /**
+     * Reject new calls with AdmissionRejectedException and wait for the calls in flight to finish
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if every call in flight finished in time
+     * @throws RemoteException throws if interrupted while waiting
+     */
+    @Override
+    public boolean drain(long timeoutMillis) throws RemoteException {
+        try {
+            return calculator.drain(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while draining", e);
+        }
+    }
+
+    /**
+     * Accept new calls again after a drain
+     *
+     * @throws RemoteException throws if the call fails
+     */
+    @Override
+    public void resume() throws RemoteException {
+        calculator.resume();
+    }
+}
@@ -1,15 +1,15 @@
-import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
 public class CalculatorClient {
 
     public void run() {
-        try {
-            // Get the registry
-            Registry registry = LocateRegistry.getRegistry("localhost");
+        run("localhost", Registry.REGISTRY_PORT);
+    }
 
-            // Look up the calculator
-            Calculator calculator = (Calculator) registry.lookup("Calculator");
+    public void run(String host, int port) {
+        try {
+            // Look up the calculator through the shared stub cache
+            Calculator calculator = CalculatorClientFactory.getCalculator(host, port);
 
             System.out.println("Testing Calculator RMI application...");
 
@@ -67,6 +67,7 @@ public class CalculatorClient {
                 System.out.println("Final result: " + finalResult);
             }
 
+            System.out.println("Connection: " + CalculatorClientFactory.getStats(host, port, "Calculator"));
             System.out.println("Client test completed.");
         } catch (Exception e) {
             System.err.println("Calculator Client exception: " + e);
@@ -0,0 +1,475 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side access to the calculator with cached stubs.
+ * The registry is only consulted on the first request for an endpoint; every later
+ * request, from any thread, gets the same handle back without a round trip. Since all
+ * threads share one stub, they also share the connections RMI pools per endpoint.
+ * A daemon thread periodically checks each endpoint against its registry and swaps in
+ * a fresh stub when the server has restarted, so handles survive server restarts.
+ * Exceptions the server throws are rethrown as thrown, without RMI's ServerException wrapper.
+ * A call is retried once on a freshly looked up stub only when it cannot have run: the
+ * connection failed, the object was no longer exported, or the server answered with
+ * StateMovedException after handing its state over.
+ * When the bound object was exported by this same JVM and registered with registerLocal,
+ * the handle calls the object itself, so co-located callers skip stubs, sockets and
+ * serialization, and still follow the state to a new server after a handoff.
+ * If the server exports extra endpoints, bound as name-0, name-1 and so on, each call goes to
+ * the endpoint picked by the hash of its client ID, so that the clients of one JVM are spread
+ * across the listeners while each client keeps using the same one.
+ */
+public final class CalculatorClientFactory {
+    // Interval between background checks of the cached endpoints
+    private static final long HEALTH_CHECK_MILLIS = Long.getLong("calculator.healthCheckMillis", 5000);
+
+    private static final Map<String, Endpoint<?>> endpoints = new ConcurrentHashMap<>();
+    // Objects exported by this JVM, keyed by their stub, see registerLocal
+    private static final Map<Remote, Remote> localObjects = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService healthChecker;
+
+    private CalculatorClientFactory() {
+    }
+
+    /**
+     * Get a handle to the calculator bound on the given registry
+     *
+     * @param host the registry host
+     * @param port the registry port
+     * @return a handle that can be shared between threads
+     * @throws RemoteException   throws if the registry cannot be reached
+     * @throws NotBoundException throws if no calculator is bound
+     */
+    public static Calculator getCalculator(String host, int port) throws RemoteException, NotBoundException {
+        return getStub(host, port, "Calculator", Calculator.class);
+    }
+
+    /**
+     * Get a handle to any remote object bound on the given registry
+     *
+     * @param host the registry host
+     * @param port the registry port
+     * @param name the name the object is bound under
+     * @param type the remote interface of the object
+     * @return a handle that can be shared between threads
+     * @throws RemoteException   throws if the registry cannot be reached
+     * @throws NotBoundException throws if nothing is bound under the name
+     */
+    public static <T extends Remote> T getStub(String host, int port, String name, Class<T> type)
+            throws RemoteException, NotBoundException {
+        String key = host + ":" + port + "/" + name;
+        Endpoint<?> endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            Endpoint<T> created = new Endpoint<>(host, port, name, type);
+            created.resolve();
+            endpoint = endpoints.putIfAbsent(key, created);
+            if (endpoint == null) {
+                endpoint = created;
+                startHealthChecker();
+            }
+        } else {
+            endpoint.cacheHits.increment();
+        }
+        if (endpoint.type != type) {
+            throw new IllegalArgumentException(key + " is not a " + type.getName());
+        }
+        return type.cast(endpoint.handle);
+    }
+
+    /**
+     * Make an exported object reachable in-process. Handles in this JVM whose lookup resolves
+     * to the object's stub then call the object itself instead of going through the stub.
+     *
+     * @param object the exported object
+     * @throws NoSuchObjectException throws if the object is not exported
+     */
+    public static void registerLocal(Remote object) throws NoSuchObjectException {
+        localObjects.put(RemoteObject.toStub(object), object);
+    }
+
+    /**
+     * Stop handing out an object in-process, for example before it is unexported
+     *
+     * @param object the object registered with {@link #registerLocal(Remote)}
+     * @throws NoSuchObjectException throws if the object is not exported
+     */
+    public static void unregisterLocal(Remote object) throws NoSuchObjectException {
+        localObjects.remove(RemoteObject.toStub(object));
+    }
+
+    /**
+     * Get the lookup and connection statistics of an endpoint
+     *
+     * @param host the registry host
+     * @param port the registry port
+     * @param name the name the object is bound under
+     * @return the statistics, or null if the endpoint was never requested
+     */
+    public static Stats getStats(String host, int port, String name) {
+        Endpoint<?> endpoint = endpoints.get(host + ":" + port + "/" + name);
+        return endpoint == null ? null : new Stats(endpoint);
+    }
+
+    /**
+     * Start the background health checker on first use
+     */
+    private static void startHealthChecker() {
+        if (healthChecker != null) {
+            return;
+        }
+        synchronized (CalculatorClientFactory.class) {
+            if (healthChecker == null) {
+                ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "calculator-health-check");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.scheduleWithFixedDelay(CalculatorClientFactory::checkEndpoints,
+                        HEALTH_CHECK_MILLIS, HEALTH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                healthChecker = executor;
+            }
+        }
+    }
+
+    /**
+     * Re-resolve every cached endpoint, swapping in a new stub when the bound object changed
+     */
+    private static void checkEndpoints() {
+        for (Endpoint<?> endpoint : endpoints.values()) {
+            try {
+                endpoint.resolve();
+            } catch (Exception e) {
+                // Marked unhealthy by resolve, retried on the next round
+            }
+        }
+    }
+
+    /**
+     * Statistics of one cached endpoint
+     */
+    public static final class Stats {
+        private final long lookups;
+        private final long lookupNanos;
+        private final long maxLookupNanos;
+        private final long connectNanos;
+        private final long cacheHits;
+        private final long failures;
+        private final boolean healthy;
+        private final int endpoints;
+
+        private Stats(Endpoint<?> endpoint) {
+            this.lookups = endpoint.lookups.sum();
+            this.lookupNanos = endpoint.lookupNanos.sum();
+            this.maxLookupNanos = endpoint.maxLookupNanos;
+            this.connectNanos = endpoint.connectNanos;
+            this.cacheHits = endpoint.cacheHits.sum();
+            this.failures = endpoint.failures.sum();
+            this.healthy = endpoint.healthy;
+            this.endpoints = endpoint.shards.size();
+        }
+
+        /**
+         * @return the number of registry lookups, including background checks
+         */
+        public long getLookups() {
+            return lookups;
+        }
+
+        /**
+         * @return the average registry lookup latency in microseconds
+         */
+        public long getAverageLookupMicros() {
+            return lookups == 0 ? 0 : lookupNanos / lookups / 1000;
+        }
+
+        /**
+         * @return the slowest registry lookup in microseconds
+         */
+        public long getMaxLookupMicros() {
+            return maxLookupNanos / 1000;
+        }
+
+        /**
+         * @return the latency of the first call after the last resolve in microseconds,
+         * which includes opening the connection to the server
+         */
+        public long getConnectMicros() {
+            return connectNanos / 1000;
+        }
+
+        /**
+         * @return the number of requests served from the cache without a lookup
+         */
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        /**
+         * @return the number of failed lookups and undeliverable calls
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return whether the last lookup of the endpoint succeeded
+         */
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @return the number of extra endpoints the calls are spread across, 0 if there are none
+         */
+        public int getEndpoints() {
+            return endpoints;
+        }
+
+        @Override
+        public String toString() {
+            return "lookups=" + lookups + " avgLookup(us)=" + getAverageLookupMicros()
+                    + " maxLookup(us)=" + getMaxLookupMicros() + " connect(us)=" + getConnectMicros()
+                    + " cacheHits=" + cacheHits + " failures=" + failures + " healthy=" + healthy
+                    + " endpoints=" + endpoints;
+        }
+    }
+
+    /**
+     * A cached registry binding and the shared handle that forwards to its current stub
+     */
+    private static final class Endpoint<T extends Remote> implements InvocationHandler {
+        private final String host;
+        private final int port;
+        private final String name;
+        private final Class<T> type;
+        private final T handle;
+        private final AtomicBoolean firstCall = new AtomicBoolean();
+        private final LongAdder lookups = new LongAdder();
+        private final LongAdder lookupNanos = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile long maxLookupNanos;
+        private volatile long connectNanos;
+        private volatile boolean healthy;
+        private volatile T stub;
+        // Stubs of the extra endpoints in the order of their number, empty if there are none
+        private volatile List<T> shards = List.of();
+
+        Endpoint(String host, int port, String name, Class<T> type) {
+            this.host = host;
+            this.port = port;
+            this.name = name;
+            this.type = type;
+            this.handle = type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, this));
+        }
+
+        /**
+         * Look the binding and the extra endpoints up again and install the stubs that changed
+         */
+        synchronized void resolve() throws RemoteException, NotBoundException {
+            long start = System.nanoTime();
+            try {
+                Registry registry = LocateRegistry.getRegistry(host, port);
+                List<T> resolvedShards = lookupShards(registry);
+                T resolved = type.cast(registry.lookup(name));
+                if (!resolved.equals(stub) || !resolvedShards.equals(shards)) {
+                    stub = resolved;
+                    shards = resolvedShards;
+                    firstCall.set(true);
+                }
+                healthy = true;
+            } catch (RemoteException | NotBoundException e) {
+                healthy = false;
+                failures.increment();
+                throw e;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                lookups.increment();
+                lookupNanos.add(elapsed);
+                if (elapsed > maxLookupNanos) {
+                    maxLookupNanos = elapsed;
+                }
+            }
+        }
+
+        /**
+         * Look up the extra endpoints bound as name-0, name-1 and so on
+         *
+         * @param registry the registry to look in
+         * @return their stubs ordered by number, empty if there are none
+         */
+        private List<T> lookupShards(Registry registry) throws RemoteException {
+            Map<Integer, String> numbered = new TreeMap<>();
+            for (String bound : registry.list()) {
+                if (bound.startsWith(name + "-")) {
+                    try {
+                        numbered.put(Integer.parseInt(bound.substring(name.length() + 1)), bound);
+                    } catch (NumberFormatException e) {
+                        // Some other binding sharing the prefix
+                    }
+                }
+            }
+            List<T> stubs = new ArrayList<>(numbered.size());
+            for (String bound : numbered.values()) {
+                try {
+                    stubs.add(type.cast(registry.lookup(bound)));
+                } catch (NotBoundException e) {
+                    // Unbound since the listing, the others still spread the clients
+                }
+            }
+            return List.copyOf(stubs);
+        }
+
+        /**
+         * Pick the stub for a call, the extra endpoint of its client if there are any
+         *
+         * @param args the arguments of the call, the client ID comes last
+         * @return the stub to call
+         */
+        private T route(Object[] args) {
+            List<T> current = shards;
+            if (current.isEmpty()) {
+                return stub;
+            }
+            Object clientID = args == null || args.length == 0 ? null : args[args.length - 1];
+            int hash = clientID instanceof String ? clientID.hashCode() : 0;
+            return current.get(Math.floorMod(hash ^ (hash >>> 16), current.size()));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+            T target = route(args);
+            try {
+                return call(target, method, args);
+            } catch (NotRun e) {
+                // The call did not run, so it is safe to retry once on a fresh stub
+                failures.increment();
+                T fresh = refresh(target, args);
+                if (fresh == null) {
+                    throw e.getCause();
+                }
+                try {
+                    return call(fresh, method, args);
+                } catch (NotRun again) {
+                    throw again.getCause();
+                }
+            }
+        }
+
+        /**
+         * Call the object behind a stub, the object itself if it was registered with registerLocal
+         *
+         * @throws NotRun throws if the call did not run, wrapping what the caller would see
+         */
+        private Object call(T target, Method method, Object[] args) throws Throwable {
+            Remote local = localObjects.get(target);
+            boolean remote = !type.isInstance(local);
+            boolean timed = remote && firstCall.get() && firstCall.compareAndSet(true, false);
+            long start = timed ? System.nanoTime() : 0;
+            try {
+                return method.invoke(remote ? target : local, args);
+            } catch (InvocationTargetException e) {
+                Throwable thrown = e.getCause();
+                Throwable unwrapped = unwrap(thrown);
+                // Thrown by the server before the call changed anything
+                if (unwrapped instanceof StateMovedException
+                        // Thrown by RMI on this side or by the server's RMI runtime before dispatch,
+                        // what the called method throws arrives wrapped in a ServerException
+                        || remote && (thrown instanceof ConnectException || thrown instanceof ConnectIOException
+                        || thrown instanceof NoSuchObjectException)) {
+                    throw new NotRun(unwrapped);
+                }
+                throw unwrapped;
+            } finally {
+                if (timed) {
+                    connectNanos = System.nanoTime() - start;
+                }
+            }
+        }
+
+        /**
+         * RMI wraps every RemoteException thrown by the server in a ServerException.
+         * Unwrap it so callers can catch the specific subtypes, such as
+         * AdmissionRejectedException, the server actually threw.
+         *
+         * @param thrown the exception thrown by the stub
+         * @return the exception to rethrow
+         */
+        private static Throwable unwrap(Throwable thrown) {
+            if (thrown instanceof ServerException && thrown.getCause() instanceof RemoteException) {
+                return thrown.getCause();
+            }
+            return thrown;
+        }
+
+        /**
+         * Replace a stub that failed, unless another thread already did
+         *
+         * @param failed the stub the call failed on
+         * @param args   the arguments of the call, to route it again
+         * @return the stub to retry on, or null if the server cannot be resolved
+         */
+        private T refresh(T failed, Object[] args) {
+            synchronized (this) {
+                T current = route(args);
+                if (current != failed) {
+                    return current;
+                }
+                try {
+                    resolve();
+                    T resolved = route(args);
+                    return resolved.equals(failed) ? null : resolved;
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Carries the failure of a call that did not run up to the retry
+         */
+        private static final class NotRun extends Exception {
+            private static final long serialVersionUID = 1L;
+
+            NotRun(Throwable cause) {
+                super(cause);
+            }
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return type.getSimpleName() + "[" + host + ":" + port + "/" + name + "]";
+            }
+        }
+    }
+}
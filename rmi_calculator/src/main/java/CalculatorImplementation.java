@@ -1,127 +1,1880 @@
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 public class CalculatorImplementation extends UnicastRemoteObject implements Calculator {
+    // Operators understood by pushOperation
+    private static final Set<String> OPERATORS = Set.of("min", "max", "lcm", "gcd");
+    // Resolution of scheduled operations
+    private static final long TIMER_TICK_MILLIS = 1;
+    // Runs the compaction sweeps and rate limit pruning of every calculator, its thread starts with the first sweep
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "calculator-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     // Stack to store values
-    private  final Map<String, Stack<Integer>> clientStacks = new ConcurrentHashMap<>();
+    private  final Map<String, ClientStack> clientStacks = new ConcurrentHashMap<>();
+    // Rate limits and concurrency caps checked before every call
+    private final AdmissionController admission;
+    // Runs the stack operations elsewhere, null to run them on the calling thread
+    private final StackEngine engine;
+    // Runs costly calls apart from cheap ones, null to run every call on its RMI thread
+    private final PriorityLanes lanes;
+    // Per-client quotas, 0 means unlimited
+    private volatile int maxDepth = Integer.getInteger("calculator.maxDepth", 0);
+    private volatile long maxBytes = Long.getLong("calculator.maxClientBytes", 0L);
+    // Deep stacks spill their bottom segments of this many values to files in spillDir, 0 never spills
+    private volatile Path spillDir = Paths.get(System.getProperty("calculator.spillDir", System.getProperty("java.io.tmpdir")));
+    private volatile int spillSegmentValues = Integer.getInteger("calculator.spillSegmentValues", 0);
+    // Callbacks for clients that subscribed to their stack
+    private final StackNotifier notifier = new StackNotifier(this::depthOf);
+    // Busiest clients by calls made, and clients by the deepest stack they reached
+    private final HotClientTracker callTracker = new HotClientTracker(false);
+    private final HotClientTracker depthTracker = new HotClientTracker(true);
+    // Server wide counters kept up to date on every change, so stats never walk clientStacks
+    private final LongAdder clientCount = new LongAdder();
+    private final LongAdder totalValues = new LongAdder();
+    private final LongAdder totalCalls = new LongAdder();
+    // Previous stats snapshot, the call rate is measured since then
+    private long lastStatsCalls;
+    private long lastStatsNanos = System.nanoTime();
+    // Clients changed since the last call to takeChanged, only while a handoff is running
+    private volatile Set<String> changedClients;
+    // Periodic compaction of idle stacks, null while disabled
+    private ScheduledFuture<?> compaction;
+    // Periodic removal of the rate limit buckets of idle clients, null without rate limits
+    private ScheduledFuture<?> bucketPruning;
+    // Scheduled operations by id and by client, the wheel timing them and the threads running them, started with the first one
+    private final Map<Long, ScheduledRun> scheduled = new ConcurrentHashMap<>();
+    private final Map<String, Set<ScheduledRun>> scheduledByClient = new ConcurrentHashMap<>();
+    // Most operations a client may have waiting to run, 0 for no limit
+    private volatile int maxScheduled = Integer.getInteger("calculator.maxScheduledPerClient", 1024);
+    private final AtomicLong scheduledIds = new AtomicLong();
+    private volatile TimerWheel timers;
+    private volatile ThreadPoolExecutor scheduledRunner;
 
     public CalculatorImplementation() throws RemoteException {
-        super();
+        this(new AdmissionController());
+    }
+
+    /**
+     * Create the implementation with the given admission control
+     *
+     * @param admission the rate limits and concurrency caps applied to incoming calls
+     * @throws RemoteException throws if the object cannot be exported
+     */
+    public CalculatorImplementation(AdmissionController admission) throws RemoteException {
+        this(admission, createEngine());
+    }
+
+    /**
+     * Create the implementation with the given admission control and engine
+     *
+     * @param admission the rate limits and concurrency caps applied to incoming calls
+     * @param engine    runs the stack operations, null to run them on the calling thread
+     * @throws RemoteException throws if the object cannot be exported
+     */
+    public CalculatorImplementation(AdmissionController admission, StackEngine engine) throws RemoteException {
+        this(admission, engine, createLanes());
+    }
+
+    /**
+     * Create the implementation with the given admission control, engine and lanes
+     *
+     * @param admission the rate limits and concurrency caps applied to incoming calls
+     * @param engine    runs the stack operations, null to run them on the calling thread
+     * @param lanes     runs calls by their cost, null to run them on the calling thread
+     * @throws RemoteException throws if the object cannot be exported
+     */
+    public CalculatorImplementation(AdmissionController admission, StackEngine engine, PriorityLanes lanes) throws RemoteException {
+        this(0, null, null, admission, engine, lanes);
+    }
+
+    /**
+     * Create the implementation exported with custom socket factories
+     *
+     * @param port the port to export on, 0 for an anonymous port
+     * @param csf  the client socket factory shipped inside the stub
+     * @param ssf  the server socket factory used to accept calls
+     * @throws RemoteException throws if the object cannot be exported
+     */
+    public CalculatorImplementation(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+        this(port, csf, ssf, new AdmissionController(), createEngine(), createLanes());
+    }
+
+    /**
+     * Export the implementation and set it up, null socket factories export it like the no-argument
+     * UnicastRemoteObject constructor does
+     */
+    private CalculatorImplementation(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf,
+                                     AdmissionController admission, StackEngine engine, PriorityLanes lanes) throws RemoteException {
+        super(port, csf, ssf);
+        this.admission = admission;
+        this.engine = engine;
+        this.lanes = lanes;
+        if (engine != null) {
+            engine.attach(this::getCurrentStack);
+        }
+        setCompactIdleMillis(Long.getLong("calculator.compactIdleMillis", 0L));
+        startBucketPruning();
+    }
+
+    /**
+     * Drop the rate limit buckets of clients idle for calculator.bucketPruneMillis (default
+     * 60000) every as many milliseconds, so that clients passing through leave nothing behind
+     */
+    private void startBucketPruning() {
+        long pruneMillis = Long.getLong("calculator.bucketPruneMillis", 60_000L);
+        if (admission.isRateLimited() && pruneMillis > 0) {
+            bucketPruning = COMPACTOR.scheduleWithFixedDelay(
+                    () -> admission.pruneBuckets(TimeUnit.MILLISECONDS.toNanos(pruneMillis)),
+                    pruneMillis, pruneMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Create the engine selected by calculator.engine, "locking" (the default) runs
+     * every call on its RMI thread, "partitioned" on calculator.partitions threads and
+     * "combining" in batches over a publication record per client
+     *
+     * @return the engine, null for the locking mode
+     */
+    private static StackEngine createEngine() {
+        String mode = System.getProperty("calculator.engine", "locking");
+        switch (mode) {
+            case "locking":
+                return null;
+            case "partitioned":
+                return new PartitionedEngine(Integer.getInteger("calculator.partitions",
+                        Runtime.getRuntime().availableProcessors()));
+            case "combining":
+                return new CombiningEngine();
+            default:
+                throw new IllegalArgumentException("Unknown calculator engine: " + mode);
+        }
+    }
+
+    /**
+     * Create the lanes configured by the calculator.*Lane* properties if calculator.lanes is true
+     *
+     * @return the lanes, null to run every call on its RMI thread
+     */
+    private static PriorityLanes createLanes() {
+        return Boolean.getBoolean("calculator.lanes") ? new PriorityLanes() : null;
+    }
+
+    /**
+     * Stop the engine and lane threads, compaction, bucket pruning and scheduled operations, once the calculator no longer serves calls
+     */
+    void close() {
+        setCompactIdleMillis(0);
+        if (bucketPruning != null) {
+            bucketPruning.cancel(false);
+        }
+        TimerWheel wheel = timers;
+        if (wheel != null) {
+            wheel.close();
+        }
+        ThreadPoolExecutor runner = scheduledRunner;
+        if (runner != null) {
+            runner.shutdown();
+        }
+        if (engine != null) {
+            engine.close();
+        }
+        if (lanes != null) {
+            lanes.close();
+        }
+    }
+
+    /**
+     * Change how long a stack must stay untouched before it is compacted.
+     * Each sweep compacts the stacks not used since the previous sweep, so a stack is
+     * compacted after between one and two periods without calls.
+     *
+     * @param idleMillis the sweep period in milliseconds, 0 to stop compacting
+     */
+    public synchronized void setCompactIdleMillis(long idleMillis) {
+        if (compaction != null) {
+            compaction.cancel(false);
+            compaction = null;
+        }
+        if (idleMillis > 0) {
+            compaction = COMPACTOR.scheduleWithFixedDelay(this::compactIdleStacks,
+                    idleMillis, idleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run one compaction sweep: compact the stacks not used since the previous sweep
+     *
+     * @return the number of stacks compacted by this sweep
+     */
+    public int compactIdleStacks() {
+        int compacted = 0;
+        for (ClientStack stack : clientStacks.values()) {
+            synchronized (stack) {
+                if (stack.compactIfIdle()) {
+                    compacted++;
+                }
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Change the per-client quotas, existing stacks above them are not trimmed
+     *
+     * @param maxDepth the maximum number of values per client, 0 for no limit
+     * @param maxBytes the maximum estimated bytes per client, 0 for no limit
+     */
+    public void setQuota(int maxDepth, long maxBytes) {
+        this.maxDepth = maxDepth;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Change how many scheduled operations a client may have waiting to run, operations
+     * already scheduled above the limit still run
+     *
+     * @param maxScheduled the maximum number of waiting operations per client, 0 for no limit
+     */
+    public void setMaxScheduled(int maxScheduled) {
+        this.maxScheduled = maxScheduled;
+    }
+
+    /**
+     * @return the maximum number of values per client, 0 for no limit
+     */
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the maximum estimated bytes per client, 0 for no limit
+     */
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Change where deep stacks spill to disk. A stack keeps at most two segments in memory
+     * and moves its bottom segment to a file in the directory when it grows past them.
+     *
+     * @param dir           the directory for the spill files
+     * @param segmentValues the number of values per spilled segment, 0 to stop spilling
+     */
+    public void setSpill(Path dir, int segmentValues) {
+        this.spillDir = dir;
+        this.spillSegmentValues = segmentValues;
+        for (ClientStack stack : clientStacks.values()) {
+            synchronized (stack) {
+                stack.spillTo(dir, segmentValues);
+            }
+        }
+    }
+
+    /**
+     * Get the resources currently held by a client, without registering unknown clients
+     *
+     * @param clientID the client to inspect
+     * @return the client's usage
+     */
+    public ClientUsage getClientUsage(String clientID) {
+        ClientStack stack = clientStacks.get(clientID);
+        if (stack == null) {
+            return new ClientUsage(clientID, 0, 0, maxDepth, maxBytes);
+        }
+        synchronized (stack) {
+            return new ClientUsage(clientID, stack.size(), stack.bytes(), maxDepth, maxBytes);
+        }
+    }
+
+    /**
+     * Drop a client together with all its values, its scheduled operations, its subscriptions
+     * and its rate limit. Subscribers are told once that the stack is empty. The client's
+     * counts in the hot client reports are not dropped, they age out with their window.
+     *
+     * @param clientID the client to drop
+     * @return the number of values dropped, 0 for unknown clients
+     */
+    public int evictClient(String clientID) {
+        Set<ScheduledRun> runs = scheduledByClient.remove(clientID);
+        if (runs != null) {
+            for (ScheduledRun run : runs) {
+                if (scheduled.remove(run.id, run)) {
+                    run.cancel();
+                }
+            }
+        }
+        int dropped = dropStack(clientID);
+        notifier.evicted(clientID);
+        admission.forget(clientID);
+        return dropped;
+    }
+
+    /**
+     * Drop a client's stack and leave everything else about the client in place
+     *
+     * @param clientID the client to drop
+     * @return the number of values dropped, 0 for unknown clients
+     */
+    private int dropStack(String clientID) {
+        ClientStack stack = clientStacks.remove(clientID);
+        if (stack == null) {
+            return 0;
+        }
+        clientCount.decrement();
+        if (engine != null) {
+            engine.forget(clientID);
+        }
+        Set<String> changed = changedClients;
+        if (changed != null) {
+            changed.add(clientID);
+        }
+        synchronized (stack) {
+            return stack.detach();
+        }
+    }
+
+    /**
+     * Read the depth of a client's stack without registering unknown clients
+     *
+     * @param clientID the client to inspect
+     * @return the number of values on the client's stack, 0 for unknown clients
+     */
+    public int getClientDepth(String clientID) {
+        return depthOf(clientID);
+    }
+
+    /**
+     * Take a snapshot of the counters of every lane
+     *
+     * @return the counters in lane order, empty if lanes are disabled
+     */
+    public List<LaneStats> getLaneStats() {
+        return lanes == null ? List.of() : lanes.getStats();
+    }
+
+    /**
+     * Forget the calls counted so far, once the warm-up calls made before the calculator
+     * served anyone have run, so that the counters and reports only show real clients
+     */
+    synchronized void resetStats() {
+        totalCalls.reset();
+        callTracker.clear();
+        depthTracker.clear();
+        lastStatsCalls = 0;
+        lastStatsNanos = System.nanoTime();
+        if (lanes != null) {
+            lanes.resetStats();
+        }
+    }
+
+    /**
+     * Take a snapshot of the server wide counters
+     *
+     * @return the current counters, with the call rate since the previous snapshot
+     */
+    public synchronized CalculatorStats getStats() {
+        long calls = totalCalls.sum();
+        long now = System.nanoTime();
+        double seconds = (now - lastStatsNanos) / 1e9;
+        double callsPerSecond = seconds > 0 ? (calls - lastStatsCalls) / seconds : 0;
+        lastStatsCalls = calls;
+        lastStatsNanos = now;
+        return new CalculatorStats(clientCount.sum(), totalValues.sum(), calls, callsPerSecond,
+                admission.getInFlight(), admission.isDraining());
+    }
+
+    /**
+     * Reject new calls and wait for the calls in flight to finish
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if every call in flight finished in time
+     * @throws InterruptedException throws if interrupted while waiting
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        return admission.drain(timeoutMillis);
+    }
+
+    /**
+     * Accept new calls again after {@link #drain(long)}
+     */
+    public void resume() {
+        admission.resume();
+    }
+
+    /**
+     * Start recording which clients change, for the delta rounds of a handoff
+     */
+    void trackChanges() {
+        changedClients = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Take the clients changed since the previous call, recording continues
+     *
+     * @return the changed clients
+     */
+    Set<String> takeChanged() {
+        Set<String> changed = changedClients;
+        changedClients = ConcurrentHashMap.newKeySet();
+        return changed;
+    }
+
+    void stopTrackingChanges() {
+        changedClients = null;
+    }
+
+    /**
+     * @return the clients currently holding a stack
+     */
+    Set<String> clientIDs() {
+        return clientStacks.keySet();
+    }
+
+    /**
+     * Copy the values a client holds in memory from a given depth up, without registering
+     * unknown clients. The spilled values below them are read in chunks with copySpilled,
+     * so that a handoff never holds a deep stack in one array.
+     *
+     * @param clientID the client to copy
+     * @param from     the depth to copy from, 0 for the whole stack
+     * @param depths   receives the depth the copy starts at, from or the depth of the stack if
+     *                 it is lower, and the number of spilled values
+     * @return the values in memory at or above the start, bottom first, or null for unknown clients
+     */
+    int[] memorySnapshot(String clientID, int from, int[] depths) {
+        ClientStack stack = clientStacks.get(clientID);
+        if (stack == null) {
+            return null;
+        }
+        synchronized (stack) {
+            int spilled = stack.spilled();
+            depths[0] = Math.min(from, stack.size());
+            depths[1] = spilled;
+            return stack.memoryToArray(Math.max(depths[0] - spilled, 0));
+        }
+    }
+
+    /**
+     * Take the depth below which a client's values did not change since the previous call,
+     * the delta rounds of a handoff only send the values above it
+     *
+     * @param clientID the client
+     * @return the number of unchanged bottom values, 0 for unknown clients
+     */
+    int takeUnchanged(String clientID) {
+        ClientStack stack = clientStacks.get(clientID);
+        if (stack == null) {
+            return 0;
+        }
+        synchronized (stack) {
+            return stack.takeUnchanged();
+        }
+    }
+
+    /**
+     * Copy consecutive spilled values of a client
+     *
+     * @param clientID the client to copy
+     * @param from     the position of the first value, 0 being the bottom of the stack
+     * @param values   the array to fill from its start
+     * @return the number of values copied, fewer than asked if the client spilled fewer values by now
+     */
+    int copySpilled(String clientID, int from, int[] values) {
+        ClientStack stack = clientStacks.get(clientID);
+        if (stack == null) {
+            return 0;
+        }
+        synchronized (stack) {
+            return stack.copySpilled(from, values);
+        }
+    }
+
+    /**
+     * Copy a client's wide results without registering unknown clients
+     *
+     * @param clientID the client to copy
+     * @return Long and BigInteger results bottom first, or null for unknown clients
+     */
+    Number[] wideSnapshot(String clientID) {
+        ClientStack stack = clientStacks.get(clientID);
+        if (stack == null) {
+            return null;
+        }
+        synchronized (stack) {
+            return stack.wideToArray();
+        }
+    }
+
+    /**
+     * Cut a client's stack down before the values above are restored, used when taking over
+     * the state of another server
+     *
+     * @param clientID the client to replace
+     * @param depth    the number of bottom values to keep
+     * @return the depth of the stack afterwards, lower than asked if it held fewer values
+     */
+    int restoreStart(String clientID, int depth) {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            stack.truncate(Math.min(depth, stack.size()));
+            while (stack.wideSize() > 0) {
+                stack.popBig();
+            }
+            return stack.size();
+        }
+    }
+
+    /**
+     * Push restored values on top of a client's stack, in chunks so that deep stacks spill as they arrive
+     *
+     * @param clientID the client to fill
+     * @param values   the values bottom first
+     */
+    void restoreValues(String clientID, int[] values) {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            stack.beginBatch();
+            try {
+                for (int val : values) {
+                    stack.push(val);
+                }
+            } finally {
+                stack.endBatch();
+            }
+        }
+    }
+
+    /**
+     * Restore a client's wide results
+     *
+     * @param clientID the client to fill
+     * @param wide     Long and BigInteger results bottom first
+     */
+    void restoreWide(String clientID, Number[] wide) {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            for (Number val : wide) {
+                if (val instanceof BigInteger) {
+                    stack.pushBig((BigInteger) val);
+                } else {
+                    stack.pushWide(val.longValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop a client that no longer exists on the server whose state is taken over
+     *
+     * @param clientID the client to drop
+     */
+    void restoreRemoved(String clientID) {
+        dropStack(clientID);
+    }
+
+    /**
+     * @return the time each client has to wait until its rate limit is back to a full burst,
+     *         in nanoseconds, for the clients that used part of their burst
+     */
+    Map<String, Long> rateDebts() {
+        return admission.debts();
+    }
+
+    /**
+     * Take over how much of its burst a client used on another server
+     *
+     * @param clientID the client
+     * @param nanos    the time until its rate limit is back to a full burst
+     */
+    void restoreRateDebt(String clientID, long nanos) {
+        admission.restoreDebt(clientID, nanos);
+    }
+
+    /**
+     * @return the listeners subscribed to each client
+     */
+    Map<String, List<CalculatorListener>> subscriptions() {
+        return notifier.subscriptions();
+    }
+
+    /**
+     * Take over a subscription from another server
+     *
+     * @param listener the listener to call back
+     * @param clientID the client it watches
+     */
+    void restoreSubscription(CalculatorListener listener, String clientID) {
+        notifier.subscribe(listener, clientID);
+    }
+
+    /**
+     * Let one client's calls past the rate limit, see {@link AdmissionController#setExempt(String)}
+     *
+     * @param clientID the client to exempt, null to exempt none
+     */
+    void exemptFromRateLimit(String clientID) {
+        admission.setExempt(clientID);
+    }
+
+    /**
+     * Make new calls wait and wait for the running ones, see {@link AdmissionController#hold(long)}
+     *
+     * @param timeoutMillis the longest time to wait for the running calls
+     * @return true if no call is changing state any more
+     * @throws InterruptedException throws if interrupted while waiting
+     */
+    boolean hold(long timeoutMillis) throws InterruptedException {
+        return admission.hold(timeoutMillis);
+    }
+
+    /**
+     * End a hold. Once the state has moved, waiting and future calls fail with
+     * StateMovedException, which makes CalculatorClientFactory handles retry on the new server.
+     * Parked awaitPop calls fail with a plain NoSuchObjectException instead: they already
+     * used up part of their timeout, so whether to wait again is left to the caller.
+     *
+     * @param moved true if another server took over the state
+     */
+    void release(boolean moved) {
+        admission.release(moved);
+        if (moved) {
+            for (ClientStack stack : clientStacks.values()) {
+                synchronized (stack) {
+                    stack.cancelWaiters();
+                }
+            }
+        }
+    }
+
+    /**
+     * Report the clients making the most calls
+     *
+     * @param k             the number of clients to report
+     * @param windowSeconds the length of the window, at most 60 seconds
+     * @return up to k clients, busiest first
+     */
+    public List<HotClient> getTopClientsByCalls(int k, int windowSeconds) {
+        return callTracker.top(k, windowSeconds);
+    }
+
+    /**
+     * Report the clients storing the most values, by the deepest their stack got within the window
+     *
+     * @param k             the number of clients to report
+     * @param windowSeconds the length of the window, at most 60 seconds
+     * @return up to k clients, deepest first
+     */
+    public List<HotClient> getTopClientsByValues(int k, int windowSeconds) {
+        return depthTracker.top(k, windowSeconds);
+    }
+
+    /**
+     * Count a call and pass it through admission control, rejected calls are counted too
+     *
+     * @param clientID the calling client
+     * @throws RemoteException throws if admission control rejects the call
+     */
+    private void enter(String clientID) throws RemoteException {
+        callTracker.record(clientID, 1);
+        admission.enter(clientID);
+        totalCalls.increment();
+    }
+
+    /**
+     * Release the admission of a call that passed {@link #enter(String)}
+     */
+    private void exit() {
+        admission.exit();
+    }
+
+    /**
+     * Run a stack operation in the lane for its cost and on the engine, when either is enabled
+     *
+     * @param values   the number of values the operation touches, which picks its lane
+     * @param clientID the calling client
+     * @param task     the operation
+     * @return the result of the operation
+     * @throws RemoteException throws if the lane is full or the operation failed
+     */
+    private <T> T route(int values, String clientID, StackEngine.Task<T> task) throws RemoteException {
+        StackEngine.Task<T> routed = engine == null ? task : () -> engine.execute(clientID, task);
+        return lanes == null ? routed.run() : lanes.run(lanes.classify(values), routed);
+    }
+
+    /**
+     * Notify subscribers of a change and record it for a running handoff
+     *
+     * @param clientID the client whose stack changed
+     */
+    private void changed(String clientID) {
+        notifier.changed(clientID);
+        Set<String> changed = changedClients;
+        if (changed != null) {
+            changed.add(clientID);
+        }
+    }
+
+    /**
+     * Get the current stack for the client
+     *
+     * @return the current stack for the client
+     */
+    private ClientStack getCurrentStack(String clientID) {
+        try {
+            ClientStack stack = clientStacks.get(clientID);
+            if (stack != null) {
+                return stack;
+            }
+            return clientStacks.computeIfAbsent(clientID, k -> {
+                clientCount.increment();
+                ClientStack created = new ClientStack(totalValues);
+                created.spillTo(spillDir, spillSegmentValues);
+                return created;
+            });
+        } catch (RuntimeException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Push a value to the stack
+     *
+     * @param val the value to push
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public void pushValue(int val,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(1, clientID, () -> {
+                    doPushValue(val, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushValue(val, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushValue(int val, String clientID) throws RemoteException {
+        //System.out.println("Push: " + clientIdHolder.get()+" "+val);
+        ClientStack stack = getCurrentStack(clientID);
+        int depth;
+        synchronized (stack) {
+            if (stack.handOff(val)) {
+                // A thread blocked in awaitPop took the value, the stack is unchanged
+                return;
+            }
+            checkQuota(stack, 1, ClientStack.VALUE_BYTES, clientID);
+            stack.push(val);
+            depth = stack.size();
+        }
+        depthTracker.record(clientID, depth);
+        changed(clientID);
+    }
+
+    /**
+     * Push several values to the stack in one call
+     *
+     * @param values the values to push, the last one ends up on top
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public void pushValues(PackedValues values,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(values.size(), clientID, () -> {
+                    doPushValues(values, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushValues(values, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushValues(PackedValues values, String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        int[] array = values.toArray();
+        long bytes = (long) array.length * ClientStack.VALUE_BYTES;
+        int depth;
+        synchronized (stack) {
+            checkQuota(stack, array.length, bytes, clientID);
+            stack.beginBatch();
+            try {
+                for (int val : array) {
+                    stack.push(val);
+                }
+            } finally {
+                stack.endBatch();
+            }
+            // The peak is reached before waiters take their values
+            depth = stack.size();
+            stack.serveWaiters();
+        }
+        depthTracker.record(clientID, depth);
+        changed(clientID);
+    }
+
+    /**
+     * Push an operation to the stack
+     *
+     * @param operator the operation to push
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public void pushOperation(String operator,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(depthOf(clientID), clientID, () -> {
+                    doPushOperation(operator, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushOperation(operator, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushOperation(String operator, String clientID) throws RemoteException {
+        //System.out.println("pushOperation: " + clientIdHolder.get()+" "+operator);
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (stack.size() < 2) {
+                throw new RemoteException("Not enough operands in stack for operation");
+            }
+            reduce(operator, stack, stack.size());
+        }
+        changed(clientID);
+    }
+
+    /**
+     * Push an operation that only consumes the top values of the stack
+     *
+     * @param operator the operation to push
+     * @param count    the number of values from the top of the stack to reduce
+     * @throws RemoteException throws if there are not enough operands in the stack
+     */
+    @Override
+    public void pushOperation(String operator,int count,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(count, clientID, () -> {
+                    doPushOperation(operator, count, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushOperation(operator, count, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushOperation(String operator, int count, String clientID) throws RemoteException {
+        if (count < 1) {
+            throw new RemoteException("Operand count must be positive");
+        }
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (stack.size() < count) {
+                throw new RemoteException("Not enough operands in stack for operation");
+            }
+            reduce(operator, stack, count);
+        }
+        changed(clientID);
+    }
+
+    /**
+     * Reduce the whole stack into a wide result that cannot overflow
+     *
+     * @param operator the operation to push
+     * @throws RemoteException throws if there are not enough operands in the stack
+     */
+    @Override
+    public void pushWideOperation(String operator,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(depthOf(clientID), clientID, () -> {
+                    doPushWideOperation(operator, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushWideOperation(operator, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushWideOperation(String operator, String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (stack.size() < 2) {
+                throw new RemoteException("Not enough operands in stack for operation");
+            }
+            reduceWide(operator, stack, stack.size());
+        }
+        changed(clientID);
+    }
+
+    /**
+     * Reduce the top values of the stack into a wide result that cannot overflow.
+     * The result goes to the client's wide results, read with popLong or popBig.
+     *
+     * @param operator the operation to push
+     * @param count    the number of values from the top of the stack to reduce
+     * @throws RemoteException throws if there are not enough operands in the stack
+     */
+    @Override
+    public void pushWideOperation(String operator,int count,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                route(count, clientID, () -> {
+                    doPushWideOperation(operator, count, clientID);
+                    return null;
+                });
+                return;
+            }
+            doPushWideOperation(operator, count, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private void doPushWideOperation(String operator, int count, String clientID) throws RemoteException {
+        if (count < 1) {
+            throw new RemoteException("Operand count must be positive");
+        }
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (stack.size() < count) {
+                throw new RemoteException("Not enough operands in stack for operation");
+            }
+            reduceWide(operator, stack, count);
+        }
+        changed(clientID);
+    }
+
+    /**
+     * Pop a wide result
+     *
+     * @return the popped result
+     * @throws RemoteException throws if there is no wide result or it does not fit in a long
+     */
+    @Override
+    public long popLong(String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                return route(1, clientID, () -> doPopLong(clientID));
+            }
+            return doPopLong(clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private long doPopLong(String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        long val;
+        synchronized (stack) {
+            if (stack.wideSize() == 0) {
+                throw new RemoteException("No wide result");
+            }
+            if (stack.isTopBig()) {
+                throw new RemoteException("Wide result does not fit in a long, use popBig");
+            }
+            val = stack.popWide();
+        }
+        changed(clientID);
+        return val;
+    }
+
+    /**
+     * Pop a wide result of any size
+     *
+     * @return the popped result
+     * @throws RemoteException throws if there is no wide result
+     */
+    @Override
+    public BigInteger popBig(String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                return route(1, clientID, () -> doPopBig(clientID));
+            }
+            return doPopBig(clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private BigInteger doPopBig(String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        BigInteger val;
+        synchronized (stack) {
+            if (stack.wideSize() == 0) {
+                throw new RemoteException("No wide result");
+            }
+            val = stack.popBig();
+        }
+        changed(clientID);
+        return val;
+    }
+
+    /**
+     * Replace the top count values of the stack with the result of the operation.
+     * Values are combined from the top of the stack downwards and the values below
+     * them are left untouched, so the cost is proportional to count.
+     *
+     * @param operator the operation to apply
+     * @param stack    the stack to reduce, the caller must hold its lock
+     * @param count    the number of values to reduce
+     * @throws RemoteException throws if the operator is unknown
+     */
+    private void reduce(String operator, ClientStack stack, int count) throws RemoteException {
+        replaceTop(stack, count, combine(operator, stack, count));
+    }
+
+    /**
+     * Combine the top count values of the stack without changing it, so that an operation
+     * that fails leaves the stack as it was
+     *
+     * @param operator the operation to apply
+     * @param stack    the stack to read, the caller must hold its lock
+     * @param count    the number of values to combine
+     * @return the result of the operation
+     * @throws RemoteException throws if the operator is unknown
+     */
+    private int combine(String operator, ClientStack stack, int count) throws RemoteException {
+        int top = stack.size() - 1;
+        int bottom = top - count + 1;
+        int result = stack.get(top);
+
+        switch (operator) {
+            case "min" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = Math.min(result, stack.get(i));
+                }
+                break;
+            }
+            case "max" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = Math.max(result, stack.get(i));
+                }
+                break;
+            }
+            case "lcm" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = lcm(result, stack.get(i));
+                }
+                break;
+            }
+            case "gcd" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = gcd(result, stack.get(i));
+                }
+                break;
+            }
+            default:
+                throw new RemoteException("Unknown operator: " + operator);
+        }
+        return result;
+    }
+
+    /**
+     * Drop the top count values and push the result in their place, published as one change
+     *
+     * @param stack  the stack to change, the caller must hold its lock
+     * @param count  the number of values to drop
+     * @param result the value to push
+     */
+    private void replaceTop(ClientStack stack, int count, int result) {
+        stack.beginBatch();
+        try {
+            stack.truncate(stack.size() - count);
+            stack.push(result);
+        } finally {
+            stack.endBatch();
+        }
+    }
+
+    /**
+     * Replace the top count values of the stack with the exact result of the operation,
+     * pushed to the wide results. The reduction runs on long and only switches to
+     * BigInteger once an lcm no longer fits, so most reductions allocate nothing.
+     * gcd and lcm results are non-negative, min and max keep their sign.
+     *
+     * @param operator the operation to apply
+     * @param stack    the stack to reduce, the caller must hold its lock
+     * @param count    the number of values to reduce
+     * @throws RemoteException throws if the operator is unknown
+     */
+    private void reduceWide(String operator, ClientStack stack, int count) throws RemoteException {
+        int top = stack.size() - 1;
+        int bottom = top - count + 1;
+        long result = stack.get(top);
+        BigInteger big = null;
+
+        switch (operator) {
+            case "min" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = Math.min(result, stack.get(i));
+                }
+                break;
+            }
+            case "max" : {
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = Math.max(result, stack.get(i));
+                }
+                break;
+            }
+            case "lcm" : {
+                result = Math.abs(result);
+                for (int i = top - 1; i >= bottom; i--) {
+                    long operand = Math.abs((long) stack.get(i));
+                    if (big != null) {
+                        big = lcm(big, BigInteger.valueOf(operand));
+                    } else if (result == 0 || operand == 0) {
+                        result = 0;
+                    } else {
+                        long quotient = result / gcd(result, operand);
+                        long product = quotient * operand;
+                        // Both factors are positive, so the product overflowed if it has high bits or the sign bit
+                        if (Math.multiplyHigh(quotient, operand) != 0 || product < 0) {
+                            big = BigInteger.valueOf(quotient).multiply(BigInteger.valueOf(operand));
+                        } else {
+                            result = product;
+                        }
+                    }
+                }
+                break;
+            }
+            case "gcd" : {
+                result = Math.abs(result);
+                for (int i = top - 1; i >= bottom; i--) {
+                    result = gcd(result, Math.abs((long) stack.get(i)));
+                }
+                break;
+            }
+            default:
+                throw new RemoteException("Unknown operator: " + operator);
+        }
+        // Drop the consumed values and push the result, published as one change
+        stack.beginBatch();
+        try {
+            stack.truncate(bottom);
+            if (big != null) {
+                stack.pushBig(big);
+            } else {
+                stack.pushWide(result);
+            }
+        } finally {
+            stack.endBatch();
+        }
+    }
+
+    /**
+     * Check that a push keeps the client within its quotas
+     *
+     * @param stack the stack to push to, the caller must hold its lock
+     * @param count the number of values to push
+     * @param bytes the estimated bytes of the values to push
+     * @throws QuotaExceededException throws if the push would exceed a quota
+     */
+    private void checkQuota(ClientStack stack, int count, long bytes, String clientID) throws QuotaExceededException {
+        int depthLimit = maxDepth;
+        if (depthLimit > 0 && stack.size() + (long) count > depthLimit) {
+            throw new QuotaExceededException("Client " + clientID + " would exceed its stack depth quota of "
+                    + depthLimit + " values (current depth " + stack.size() + ")");
+        }
+        long bytesLimit = maxBytes;
+        if (bytesLimit > 0 && stack.bytes() + bytes > bytesLimit) {
+            throw new QuotaExceededException("Client " + clientID + " would exceed its memory quota of "
+                    + bytesLimit + " bytes (current usage " + stack.bytes() + " bytes)");
+        }
+    }
+
+    /**
+     * Pop a value from the stack
+     *
+     * @return the popped value
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public int pop(String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            //System.out.println("pop: " + clientIdHolder.get());
+            if (engine != null || lanes != null) {
+                return route(1, clientID, () -> popValue(clientID));
+            }
+            return popValue(clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Pop several values from the stack in one call
+     *
+     * @param count the number of values to pop
+     * @return the popped values, the former top of the stack first
+     * @throws RemoteException throws if the stack holds fewer than count values
+     */
+    @Override
+    public PackedValues popValues(int count,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                return route(count, clientID, () -> doPopValues(count, clientID));
+            }
+            return doPopValues(count, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private PackedValues doPopValues(int count, String clientID) throws RemoteException {
+        if (count < 0) {
+            throw new RemoteException("Value count must not be negative");
+        }
+        ClientStack stack = getCurrentStack(clientID);
+        int[] values = new int[count];
+        synchronized (stack) {
+            if (stack.size() < count) {
+                throw new RemoteException("Not enough values in stack");
+            }
+            stack.beginBatch();
+            try {
+                for (int i = 0; i < count; i++) {
+                    values[i] = stack.pop();
+                }
+            } finally {
+                stack.endBatch();
+            }
+        }
+        changed(clientID);
+        return new PackedValues(values);
+    }
+
+    /**
+     * Pop a value from the stack, shared by pop and delayPop
+     *
+     * @return the popped value
+     * @throws RemoteException throws if the stack is empty
+     */
+    private int popValue(String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        int val;
+        synchronized (stack) {
+            if (stack.isEmpty()) {
+                throw new RemoteException("Stack is empty");
+            }
+            val = stack.pop();
+        }
+        changed(clientID);
+        return val;
+    }
+
+    /**
+     * Check if the stack is empty. Reads the depth published by the last change, so it
+     * neither locks the stack nor registers unknown clients.
+     *
+     * @return true if the stack is empty, false otherwise
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public boolean isEmpty(String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            //System.out.println("isEmpty: " + clientIdHolder.get());
+            return depthOf(clientID) == 0;
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Get the number of values on the stack, without locking it or registering unknown clients
+     *
+     * @return the number of values, 0 for unknown clients
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public int size(String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            return depthOf(clientID);
+        } finally {
+            exit();
+        }
     }
 
     /**
-     * Get the current stack for the client
+     * Read the top value of the stack without removing it, from the value published by
+     * the last change, so it neither locks the stack nor registers unknown clients
      *
-     * @return the current stack for the client
+     * @return the top value
+     * @throws RemoteException throws if the stack is empty
      */
-    private Stack<Integer> getCurrentStack(String clientID) {
+    @Override
+    public int peek(String clientID) throws RemoteException {
+        enter(clientID);
         try {
-            return clientStacks.computeIfAbsent(clientID, k -> new Stack<>());
-        } catch (RuntimeException e) {
-            throw new RuntimeException(e);
+            ClientStack stack = clientStacks.get(clientID);
+            long published = stack == null ? 0 : stack.published();
+            if (ClientStack.depthOf(published) == 0) {
+                throw new RemoteException("Stack is empty");
+            }
+            return ClientStack.topOf(published);
+        } finally {
+            exit();
         }
     }
 
     /**
-     * Push a value to the stack
+     * Pop the top value only if it equals the expected value
      *
-     * @param val the value to push
+     * @param expected the value the top of the stack must hold
+     * @return true if the value was popped, false if the stack is empty or holds another value
      * @throws RemoteException throws if the client is not registered
      */
     @Override
-    public synchronized void pushValue(int val,String clientID) throws RemoteException {
-        //System.out.println("Push: " + clientIdHolder.get()+" "+val);
-        Stack<Integer> stack = getCurrentStack(clientID);
-        stack.push(val);
+    public boolean compareAndPop(int expected,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                return route(1, clientID, () -> doCompareAndPop(expected, clientID));
+            }
+            return doCompareAndPop(expected, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private boolean doCompareAndPop(int expected, String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (stack.isEmpty() || stack.get(stack.size() - 1) != expected) {
+                return false;
+            }
+            stack.pop();
+        }
+        changed(clientID);
+        return true;
     }
 
     /**
-     * Push an operation to the stack
+     * Exchange the top two values of the stack
      *
-     * @param operator the operation to push
-     * @throws RemoteException throws if the client is not registered
+     * @throws RemoteException throws if the stack holds fewer than two values
      */
     @Override
-    public void pushOperation(String operator,String clientID) throws RemoteException {
-        //System.out.println("pushOperation: " + clientIdHolder.get()+" "+operator);
-        Stack<Integer> stack = getCurrentStack(clientID);
-        if (stack.size() < 2) {
-            throw new RemoteException("Not enough operands in stack for operation");
-        }
-        List<Integer> values = new ArrayList<>();
+    public void swap(String clientID) throws RemoteException {
+        runAtomically(clientID, List.of(StackOp.swap()));
+    }
 
-        // Pop all values from the stack
-        while (!stack.isEmpty() && stack.peek() != null) {
-            values.add(stack.pop());
-        }
+    /**
+     * Push a copy of the top value of the stack
+     *
+     * @throws RemoteException throws if the stack is empty or the copy exceeds a quota
+     */
+    @Override
+    public void dup(String clientID) throws RemoteException {
+        runAtomically(clientID, List.of(StackOp.dup()));
+    }
 
-        if (values.isEmpty()) {
-            return;
-        }
+    /**
+     * Run a sequence of steps under the client's lock, all or nothing.
+     * If a step fails, the steps before it are undone and the stack is left as it was.
+     *
+     * @param ops the steps to run in order
+     * @return the values read by pop, peek and compareAndPop steps, in execution order
+     * @throws RemoteException throws if a step fails
+     */
+    @Override
+    public int[] atomically(List<StackOp> ops,String clientID) throws RemoteException {
+        return runAtomically(clientID, ops);
+    }
 
-        int result = values.get(0);
+    private int[] runAtomically(String clientID, List<StackOp> ops) throws RemoteException {
+        enter(clientID);
+        try {
+            if (engine != null || lanes != null) {
+                return route(ops.size(), clientID, () -> doAtomically(clientID, ops));
+            }
+            return doAtomically(clientID, ops);
+        } finally {
+            exit();
+        }
+    }
 
-        switch (operator) {
-            case "min" : {
-                for (int i = 1; i < values.size(); i++) {
-                    result = Math.min(result, values.get(i));
-                }
-                break;
+    private int[] doAtomically(String clientID, List<StackOp> ops) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        Journal journal = new Journal();
+        int depth;
+        synchronized (stack) {
+            stack.beginBatch();
+            try {
+                apply(ops, stack, journal, clientID);
+            } catch (RemoteException | RuntimeException e) {
+                journal.rollback(stack);
+                throw e;
+            } finally {
+                stack.endBatch();
             }
-            case "max" : {
-                for (int i = 1; i < values.size(); i++) {
-                    result = Math.max(result, values.get(i));
+            depth = stack.size();
+            stack.serveWaiters();
+        }
+        if (journal.changed()) {
+            depthTracker.record(clientID, depth);
+            changed(clientID);
+        }
+        return journal.results();
+    }
+
+    /**
+     * Apply steps to the stack, recording every change in the journal
+     *
+     * @param ops     the steps to apply
+     * @param stack   the stack, the caller must hold its lock
+     * @param journal the journal recording changes and results
+     * @throws RemoteException throws if a step fails
+     */
+    private void apply(List<StackOp> ops, ClientStack stack, Journal journal, String clientID) throws RemoteException {
+        for (StackOp op : ops) {
+            switch (op.getKind()) {
+                case PUSH:
+                    checkQuota(stack, 1, ClientStack.VALUE_BYTES, clientID);
+                    journal.push(stack, op.getValue());
+                    break;
+                case POP:
+                    if (stack.isEmpty()) {
+                        throw new RemoteException("Stack is empty");
+                    }
+                    journal.result(journal.pop(stack));
+                    break;
+                case PEEK:
+                    if (stack.isEmpty()) {
+                        throw new RemoteException("Stack is empty");
+                    }
+                    journal.result(stack.get(stack.size() - 1));
+                    break;
+                case SWAP: {
+                    if (stack.size() < 2) {
+                        throw new RemoteException("Not enough operands in stack for operation");
+                    }
+                    int top = journal.pop(stack);
+                    int below = journal.pop(stack);
+                    journal.push(stack, top);
+                    journal.push(stack, below);
+                    break;
                 }
-                break;
-            }
-            case "lcm" : {
-                for (int i = 1; i < values.size(); i++) {
-                    result = lcm(result, values.get(i));
+                case DUP: {
+                    if (stack.isEmpty()) {
+                        throw new RemoteException("Stack is empty");
+                    }
+                    int top = stack.get(stack.size() - 1);
+                    checkQuota(stack, 1, ClientStack.VALUE_BYTES, clientID);
+                    journal.push(stack, top);
+                    break;
                 }
-                break;
-            }
-            case "gcd" : {
-                for (int i = 1; i < values.size(); i++) {
-                    result = gcd(result, values.get(i));
+                case OPERATION: {
+                    // A count of 0 reduces the whole stack, which needs at least two values
+                    int minimum = op.getValue() > 0 ? op.getValue() : 2;
+                    if (stack.size() < minimum) {
+                        throw new RemoteException("Not enough operands in stack for operation");
+                    }
+                    if (!OPERATORS.contains(op.getOperator())) {
+                        throw new RemoteException("Unknown operator: " + op.getOperator());
+                    }
+                    int count = op.getValue() > 0 ? op.getValue() : stack.size();
+                    // Combined before journaling, an operation that fails must not leave consumed values to undo
+                    int result = combine(op.getOperator(), stack, count);
+                    journal.consumed(stack, count);
+                    replaceTop(stack, count, result);
+                    journal.pushed();
+                    break;
                 }
-                break;
+                case COMPARE_AND_POP:
+                    if (!stack.isEmpty() && stack.get(stack.size() - 1) == op.getValue()) {
+                        journal.pop(stack);
+                        journal.result(1);
+                    } else {
+                        journal.result(0);
+                    }
+                    break;
+                case IF_EMPTY:
+                    apply(stack.isEmpty() ? op.getThen() : op.getOtherwise(), stack, journal, clientID);
+                    break;
             }
         }
-        stack.push(result);
     }
 
     /**
-     * Pop a value from the stack
+     * Run a sequence of steps for the client once, after a delay. The steps run as one
+     * atomically call; if one fails the stack is left as it was and the values read are dropped.
      *
-     * @return the popped value
-     * @throws RemoteException throws if the client is not registered
+     * @param ops         the steps to run
+     * @param delayMillis the delay in milliseconds
+     * @return the id to cancel the operation with
+     * @throws RemoteException throws if the steps or the delay are invalid
      */
     @Override
-    public int pop(String clientID) throws RemoteException {
-        //System.out.println("pop: " + clientIdHolder.get());
-        Stack<Integer> stack = getCurrentStack(clientID);
-        if (stack.isEmpty()) {
-            throw new RemoteException("Stack is empty");
+    public long schedule(List<StackOp> ops,long delayMillis,String clientID) throws RemoteException {
+        return addScheduled(ops, delayMillis, 0, clientID);
+    }
+
+    /**
+     * Run a sequence of steps for the client after a delay and then at a fixed rate, until
+     * it is cancelled. A run that fails leaves the stack as it was and the next runs go on.
+     *
+     * @param ops          the steps to run
+     * @param delayMillis  the delay before the first run in milliseconds
+     * @param periodMillis the interval between runs in milliseconds
+     * @return the id to cancel the operation with
+     * @throws RemoteException throws if the steps, the delay or the period are invalid
+     */
+    @Override
+    public long scheduleAtFixedRate(List<StackOp> ops,long delayMillis,long periodMillis,String clientID) throws RemoteException {
+        if (periodMillis <= 0) {
+            throw new RemoteException("Period must be positive");
         }
-        return stack.pop();
+        return addScheduled(ops, delayMillis, periodMillis, clientID);
     }
 
     /**
-     * Check if the stack is empty
+     * Cancel a scheduled operation of the client
      *
-     * @return true if the stack is empty, false otherwise
+     * @param id the id returned when it was scheduled
+     * @return true if it was cancelled, false if it already ran, was cancelled or is not the client's
      * @throws RemoteException throws if the client is not registered
      */
     @Override
-    public boolean isEmpty(String clientID) throws RemoteException {
-        //System.out.println("isEmpty: " + clientIdHolder.get());
-        Stack<Integer> stack = getCurrentStack(clientID);
-        return stack.isEmpty();
+    public boolean cancelScheduled(long id,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            ScheduledRun run = scheduled.get(id);
+            if (run == null || !run.clientID.equals(clientID) || !unlist(run)) {
+                return false;
+            }
+            run.cancel();
+            return true;
+        } finally {
+            exit();
+        }
+    }
+
+    private long addScheduled(List<StackOp> ops, long delayMillis, long periodMillis, String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (ops == null || ops.isEmpty()) {
+                throw new RemoteException("No steps to schedule");
+            }
+            if (delayMillis < 0) {
+                throw new RemoteException("Delay must not be negative");
+            }
+            List<StackOp> steps;
+            try {
+                // In-process callers pass their own list, which they may change after the call
+                steps = List.copyOf(ops);
+            } catch (NullPointerException e) {
+                throw new RemoteException("Steps must not be null");
+            }
+            return startScheduled(scheduledIds.incrementAndGet(), steps, delayMillis, periodMillis, clientID, maxScheduled);
+        } finally {
+            exit();
+        }
+    }
+
+    private long startScheduled(long id, List<StackOp> steps, long delayMillis, long periodMillis, String clientID,
+                                int limit) throws RemoteException {
+        TimerWheel wheel = timerWheel();
+        ScheduledRun run = new ScheduledRun(id, steps, periodMillis, clientID);
+        run.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        // Listed before it can run, so a one-shot run always finds its own entry to remove
+        list(run, limit);
+        try {
+            run.setTimeout(periodMillis > 0
+                    ? wheel.scheduleAtFixedRate(run, delayMillis, periodMillis, TimeUnit.MILLISECONDS)
+                    : wheel.schedule(run, delayMillis, TimeUnit.MILLISECONDS));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            unlist(run);
+            throw new RemoteException("Cannot schedule: " + e.getMessage());
+        }
+        return run.id;
+    }
+
+    /**
+     * List a run by id and under its client, unless the client already has the most runs allowed
+     *
+     * @param run   the run to list
+     * @param limit the most runs the client may have waiting, 0 for no limit
+     * @throws RemoteException throws if the client already has limit runs waiting
+     */
+    private void list(ScheduledRun run, int limit) throws RemoteException {
+        boolean[] full = {false};
+        // The client's set only changes inside compute, so the check and both listings are one step
+        scheduledByClient.compute(run.clientID, (client, runs) -> {
+            if (runs == null) {
+                runs = new HashSet<>();
+            }
+            if (limit > 0 && runs.size() >= limit) {
+                full[0] = true;
+            } else {
+                runs.add(run);
+                scheduled.put(run.id, run);
+            }
+            return runs;
+        });
+        if (full[0]) {
+            throw new RemoteException("Too many scheduled operations, at most " + limit + " may wait per client");
+        }
+    }
+
+    /**
+     * Remove a run from both listings
+     *
+     * @param run the run to remove
+     * @return true if it was listed, false if it was already removed
+     */
+    private boolean unlist(ScheduledRun run) {
+        if (!scheduled.remove(run.id, run)) {
+            return false;
+        }
+        scheduledByClient.computeIfPresent(run.clientID, (client, runs) -> {
+            runs.remove(run);
+            return runs.isEmpty() ? null : runs;
+        });
+        return true;
+    }
+
+    /**
+     * Copy the scheduled operations, used when handing the state to another server
+     *
+     * @return the operations waiting to run, with the time left until their next run
+     */
+    List<ScheduledState> scheduledStates() {
+        List<ScheduledState> states = new ArrayList<>();
+        long now = System.nanoTime();
+        for (String clientID : scheduledByClient.keySet()) {
+            states.addAll(scheduledStates(clientID, now));
+        }
+        return states;
+    }
+
+    /**
+     * Copy the scheduled operations of one client
+     *
+     * @param clientID the client whose operations to copy
+     * @param now      the current System.nanoTime, the delays are measured from
+     * @return the client's operations waiting to run, with the time left until their next run
+     */
+    private List<ScheduledState> scheduledStates(String clientID, long now) {
+        List<ScheduledState> states = new ArrayList<>();
+        // Copied inside compute, where the client's set does not change under the loop
+        scheduledByClient.computeIfPresent(clientID, (client, runs) -> {
+            for (ScheduledRun run : runs) {
+                long delayMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(run.dueNanos - now));
+                states.add(new ScheduledState(run.id, run.ops, delayMillis, run.periodMillis, run.clientID));
+            }
+            return runs;
+        });
+        return states;
+    }
+
+    /**
+     * Schedule an operation taken over from another server under its old id, so that its
+     * client can still cancel it. It counts towards the client's limit but is not refused by it,
+     * the old server already accepted it.
+     *
+     * @param state the operation and the time left until its next run
+     * @throws RemoteException throws if the operation cannot be scheduled
+     */
+    void restoreScheduled(ScheduledState state) throws RemoteException {
+        scheduledIds.accumulateAndGet(state.id, Math::max);
+        startScheduled(state.id, state.ops, state.delayMillis, state.periodMillis, state.clientID, 0);
+    }
+
+    /**
+     * Get the timer wheel, started with the first scheduled operation together with the
+     * threads running the operations, so that the wheel's thread only hands them over
+     */
+    private TimerWheel timerWheel() {
+        TimerWheel wheel = timers;
+        if (wheel == null) {
+            synchronized (scheduled) {
+                wheel = timers;
+                if (wheel == null) {
+                    int threads = Integer.getInteger("calculator.scheduledThreads",
+                            Math.max(2, Runtime.getRuntime().availableProcessors()));
+                    AtomicInteger count = new AtomicInteger();
+                    scheduledRunner = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(Integer.getInteger("calculator.scheduledQueue", 4096)), r -> {
+                                Thread thread = new Thread(r, "calculator-scheduled-" + count.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+                    wheel = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, "calculator-timer-wheel");
+                    timers = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * @return the number of scheduled operations waiting to run, recurring ones counting once
+     */
+    public long getScheduledCount() {
+        return scheduled.size();
+    }
+
+    /**
+     * A scheduled operation, timed by the wheel and run on the scheduled threads
+     */
+    private final class ScheduledRun implements Runnable {
+        final long id;
+        final List<StackOp> ops;
+        final long periodMillis;
+        final boolean recurring;
+        final String clientID;
+        // When the next run is due, on the System.nanoTime scale
+        volatile long dueNanos;
+        private volatile TimerWheel.Timeout timeout;
+        private volatile boolean cancelled;
+        // Set while a run is queued or running, a recurring run due meanwhile is skipped
+        private final AtomicBoolean pending = new AtomicBoolean();
+
+        ScheduledRun(long id, List<StackOp> ops, long periodMillis, String clientID) {
+            this.id = id;
+            this.ops = ops;
+            this.periodMillis = periodMillis;
+            this.recurring = periodMillis > 0;
+            this.clientID = clientID;
+        }
+
+        void setTimeout(TimerWheel.Timeout timeout) {
+            this.timeout = timeout;
+            // Cancelled between being listed and being scheduled
+            if (cancelled) {
+                timeout.cancel();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            TimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * Hand the run over to the scheduled threads, called on the wheel's thread
+         */
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (recurring) {
+                dueNanos += TimeUnit.MILLISECONDS.toNanos(periodMillis);
+            } else {
+                unlist(this);
+            }
+            if (!pending.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                scheduledRunner.execute(this::runSteps);
+            } catch (RejectedExecutionException e) {
+                pending.set(false);
+                System.err.println("Scheduled operation " + id + " skipped, too many runs waiting");
+            }
+        }
+
+        private void runSteps() {
+            try {
+                if (!cancelled) {
+                    runAtomically(clientID, ops);
+                }
+            } catch (NoSuchObjectException e) {
+                // The state moved to another server after this one-shot run was copied, recurring ones go on there
+                if (!recurring) {
+                    System.err.println("Scheduled operation " + id + " was due during a handoff and did not run on this server");
+                }
+            } catch (RemoteException e) {
+                // Nothing to report to, the atomic run left the stack as it was
+            } catch (RuntimeException | Error e) {
+                System.err.println("Scheduled operation " + id + " failed: " + e);
+            } finally {
+                pending.set(false);
+            }
+        }
+    }
+
+    /**
+     * A scheduled operation as it moves to another server
+     */
+    static final class ScheduledState {
+        final long id;
+        final List<StackOp> ops;
+        final long delayMillis;
+        final long periodMillis;
+        final String clientID;
+
+        ScheduledState(long id, List<StackOp> ops, long delayMillis, long periodMillis, String clientID) {
+            this.id = id;
+            this.ops = ops;
+            this.delayMillis = delayMillis;
+            this.periodMillis = periodMillis;
+            this.clientID = clientID;
+        }
     }
 
     /**
@@ -133,23 +1886,160 @@ public class CalculatorImplementation extends UnicastRemoteObject implements Cal
      */
     @Override
     public int delayPop(int millis,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (lanes != null) {
+                return lanes.run(PriorityLanes.Lane.SLOW, () -> doDelayPop(millis, clientID));
+            }
+            return doDelayPop(millis, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private int doDelayPop(int millis, String clientID) throws RemoteException {
+        admission.enterDelayed();
+        admission.beginWait();
         try {
             Thread.sleep(millis);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RemoteException("Delay interrupted", e);
+        } finally {
+            admission.endWait();
+            admission.exitDelayed();
+        }
+        // A handoff may have started during the sleep
+        admission.awaitOpen();
+        if (engine != null) {
+            return engine.execute(clientID, () -> popValue(clientID));
+        }
+        return popValue(clientID);
+    }
+
+    /**
+     * Pop a value from the stack, waiting for one to be pushed if the stack is empty
+     *
+     * @param timeoutMillis the longest time to wait in milliseconds
+     * @return the popped value
+     * @throws RemoteException throws if no value arrived before the timeout
+     */
+    @Override
+    public int awaitPop(long timeoutMillis,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            if (lanes != null) {
+                return lanes.run(PriorityLanes.Lane.SLOW, () -> doAwaitPop(timeoutMillis, clientID));
+            }
+            return doAwaitPop(timeoutMillis, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    private int doAwaitPop(long timeoutMillis, String clientID) throws RemoteException {
+        ClientStack stack = getCurrentStack(clientID);
+        synchronized (stack) {
+            if (!stack.isEmpty() || timeoutMillis <= 0) {
+                return popValue(clientID);
+            }
+        }
+        ClientStack.Waiter waiter;
+        admission.enterDelayed();
+        try {
+            synchronized (stack) {
+                if (!stack.isEmpty()) {
+                    return popValue(clientID);
+                }
+                waiter = stack.addWaiter();
+            }
+            // Parked until pushValue hands a value over, no polling in between
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long remaining;
+            admission.beginWait();
+            try {
+                while (!waiter.isDone() && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                }
+            } finally {
+                admission.endWait();
+            }
+            if (waiter.isDone() && waiter.isCancelled()) {
+                throw new NoSuchObjectException("Calculator state moved to another server");
+            }
+            if (!waiter.isDone()) {
+                synchronized (stack) {
+                    if (stack.removeWaiter(waiter)) {
+                        throw new RemoteException(Thread.currentThread().isInterrupted()
+                                ? "Wait interrupted" : "Timed out waiting for a value");
+                    }
+                }
+            }
+        } finally {
+            admission.exitDelayed();
+        }
+        // Either handed over while parked or just before the waiter could be removed
+        return waiter.getValue();
+    }
+
+    /**
+     * Subscribe to changes of the client's stack
+     *
+     * @param listener the listener called back with the new depth after each change
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public void subscribe(CalculatorListener listener,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            notifier.subscribe(listener, clientID);
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Stop receiving changes of the client's stack
+     *
+     * @param listener the listener to remove
+     * @throws RemoteException throws if the client is not registered
+     */
+    @Override
+    public void unsubscribe(CalculatorListener listener,String clientID) throws RemoteException {
+        enter(clientID);
+        try {
+            notifier.unsubscribe(listener, clientID);
+        } finally {
+            exit();
         }
-        return pop(clientID);
     }
 
     /**
-     * Helper method to calculate LCM using GCD
+     * Read the depth of a client's stack without registering unknown clients
+     *
+     * @return the number of values on the client's stack
+     */
+    private int depthOf(String clientID) {
+        ClientStack stack = clientStacks.get(clientID);
+        return stack == null ? 0 : ClientStack.depthOf(stack.published());
+    }
+
+    /**
+     * Helper method to calculate LCM using GCD. The product wraps around for results beyond
+     * an int, as it always has; exact results are what pushWideOperation is for.
+     * The LCM of 0 and any number is 0.
      *
      * @param a the first number
      * @param b the second number
      * @return the LCM of a and b
      */
     private int lcm(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
         return Math.abs(a * b) / gcd(a, b);
     }
 
@@ -161,9 +2051,113 @@ public class CalculatorImplementation extends UnicastRemoteObject implements Cal
      * @return the GCD of a and b
      */
     private int gcd(int a, int b) {
-        if (b == 0) {
-            return a;
+        while (b != 0) {
+            int remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    /**
+     * Helper method to calculate the GCD of two non-negative longs
+     *
+     * @param a the first number
+     * @param b the second number
+     * @return the GCD of a and b
+     */
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    /**
+     * Helper method to calculate the LCM of two non-negative numbers of any size
+     *
+     * @param a the first number
+     * @param b the second number
+     * @return the LCM of a and b
+     */
+    private static BigInteger lcm(BigInteger a, BigInteger b) {
+        if (a.signum() == 0 || b.signum() == 0) {
+            return BigInteger.ZERO;
+        }
+        return a.divide(a.gcd(b)).multiply(b);
+    }
+
+    /**
+     * Undo log of an atomic sequence. Every change is recorded as the primitive pushes
+     * and pops it is made of, so a failed sequence is undone by replaying them in reverse.
+     */
+    private static final class Journal {
+        private long[] entries = new long[8];
+        private int size;
+        private int[] results = new int[4];
+        private int resultCount;
+
+        void push(ClientStack stack, int val) {
+            stack.push(val);
+            pushed();
+        }
+
+        int pop(ClientStack stack) {
+            int val = stack.pop();
+            record(((long) val << 1) | 1);
+            return val;
+        }
+
+        /**
+         * Record that a value was pushed by code outside the journal
+         */
+        void pushed() {
+            record(0);
+        }
+
+        /**
+         * Record the top count values as popped, before code outside the journal removes them
+         */
+        void consumed(ClientStack stack, int count) {
+            for (int i = stack.size() - 1; i >= stack.size() - count; i--) {
+                record(((long) stack.get(i) << 1) | 1);
+            }
+        }
+
+        void result(int val) {
+            if (resultCount == results.length) {
+                results = Arrays.copyOf(results, resultCount * 2);
+            }
+            results[resultCount++] = val;
+        }
+
+        boolean changed() {
+            return size > 0;
+        }
+
+        int[] results() {
+            return Arrays.copyOf(results, resultCount);
+        }
+
+        void rollback(ClientStack stack) {
+            for (int i = size - 1; i >= 0; i--) {
+                long entry = entries[i];
+                if ((entry & 1) == 0) {
+                    stack.pop();
+                } else {
+                    stack.push((int) (entry >> 1));
+                }
+            }
+            size = 0;
+        }
+
+        private void record(long entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
         }
-        return gcd(b, a % b);
     }
-}
\ No newline at end of file
+}
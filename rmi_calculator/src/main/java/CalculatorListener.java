@@ -0,0 +1,6 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface CalculatorListener extends Remote {
+    void stackChanged(String clientID,int depth) throws RemoteException;
+}
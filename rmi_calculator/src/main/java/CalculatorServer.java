@@ -1,26 +1,407 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.ExportException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CalculatorServer {
+    // Frames of at least this many bytes are deflated, 0 keeps the default transport
+    private int compressionThreshold = Integer.getInteger("calculator.compressionThreshold", 0);
+    // Exercise the hot paths until they are compiled before advertising the server
+    private boolean warmup = Boolean.getBoolean("calculator.warmup");
+    // Let callers in this JVM reach the calculator without going through RMI
+    private boolean localAccess = !"false".equals(System.getProperty("calculator.localAccess"));
+    // Loopback port on which a new server can take over this one's state, 0 to disable
+    private int handoffPort = Integer.getInteger("calculator.handoffPort", 0);
+    // Loopback port of a running server to take the state over from, 0 to start empty
+    private int handoffFrom;
+    // Extra endpoints sharing the calculator, each with its own listener, see setEndpoints
+    private int endpoints = parseEndpoints(System.getProperty("calculator.endpoints", "0"));
+    private int[] endpointPorts = parsePorts(System.getProperty("calculator.endpointPorts", ""));
+
+    private int port;
+    private volatile Registry registry;
+    private CalculatorImplementation calculator;
+    private CalculatorAdminImplementation admin;
+    private final List<Calculator> exportedEndpoints = new ArrayList<>();
+
+    /**
+     * Enable the compressed transport for calls exported by this server
+     *
+     * @param threshold the frame size in bytes from which frames are deflated, 0 to disable
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Warm up the calculator's hot paths before it is bound in the registry
+     *
+     * @param warmup true to run the warm-up
+     */
+    public void setWarmup(boolean warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * Choose whether CalculatorClientFactory hands callers in this JVM the calculator itself
+     *
+     * @param localAccess false to make co-located callers go through RMI as well
+     */
+    public void setLocalAccess(boolean localAccess) {
+        this.localAccess = localAccess;
+    }
+
+    /**
+     * Accept handoffs on a loopback port, see {@link #setHandoffFrom(int)}
+     *
+     * @param handoffPort the port to listen on, 0 to disable
+     */
+    public void setHandoffPort(int handoffPort) {
+        this.handoffPort = handoffPort;
+    }
+
+    /**
+     * Start by taking over the state and the registry of a running server instead of
+     * creating an empty calculator. The running server must listen on the handoff port.
+     *
+     * @param handoffFrom the running server's handoff port, 0 to start empty
+     */
+    public void setHandoffFrom(int handoffFrom) {
+        this.handoffFrom = handoffFrom;
+    }
+
+    /**
+     * Export the calculator on several ports, bound as Calculator-0, Calculator-1 and so on.
+     * Each port has its own accept thread, and CalculatorClientFactory spreads clients across them.
+     *
+     * @param endpoints the number of endpoints on ports the system picks, 0 for none
+     */
+    public void setEndpoints(int endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * Export the calculator on the given ports, see {@link #setEndpoints(int)}
+     *
+     * @param ports the ports to export on, empty for none
+     */
+    public void setEndpointPorts(int... ports) {
+        this.endpointPorts = ports.clone();
+    }
+
     public void run(int port) {
+        this.port = port;
         try {
-            // Create the registry on port 1099
-            Registry registry = LocateRegistry.createRegistry(port);
+            // Create the calculator implementation, optionally over the compressed transport
+            if (compressionThreshold > 0) {
+                calculator = new CalculatorImplementation(0,
+                        new CompressingClientSocketFactory(compressionThreshold),
+                        new CompressingServerSocketFactory(compressionThreshold));
+            } else {
+                calculator = new CalculatorImplementation();
+            }
             
-            // Create the calculator implementation
-            CalculatorImplementation calculator = new CalculatorImplementation();
-            
-            // Bind the calculator to the registry
-            registry.bind("Calculator", calculator);
+            // Warm up before binding, so no client ever reaches interpreted code
+            if (warmup) {
+                long millis = new CalculatorWarmup(calculator).run();
+                System.out.println("Calculator warm-up finished in " + millis + " ms.");
+            }
+
+            if (handoffFrom > 0) {
+                // Pull the state of the running server, then bind in its place
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), handoffFrom)) {
+                    StateHandoff.receive(calculator, socket, this::takeOverRegistry);
+                }
+                System.out.println("Calculator state taken over from port " + handoffFrom + ".");
+            } else {
+                bindCalculator();
+            }
             
             System.out.println("Calculator Server is ready.");
+
+            // Everything below is not needed to serve calls, so it runs after the bind
+            initializeAfterBind();
         } catch (Exception e) {
             System.err.println("Calculator Server exception: " + e);
             e.printStackTrace();
         }
     }
     
+    /**
+     * Create the registry on the server's port and bind the calculator to it
+     *
+     * @throws Exception throws if the registry cannot be created or the bind fails
+     */
+    private void bindCalculator() throws Exception {
+        Registry created = LocateRegistry.createRegistry(port);
+        if (localAccess) {
+            CalculatorClientFactory.registerLocal(calculator);
+        }
+        created.bind("Calculator", calculator);
+        registry = created;
+    }
+
+    /**
+     * Bind in place of a server that just released the registry port. RMI may close the
+     * old listening socket a moment after the release, so a busy port is retried briefly.
+     *
+     * @throws Exception throws if the port stays busy or the bind fails
+     */
+    private void takeOverRegistry() throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                bindCalculator();
+                return;
+            } catch (ExportException e) {
+                if (attempt == 200) {
+                    throw e;
+                }
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Set up the parts of the server that clients of the calculator do not depend on
+     *
+     * @throws Exception throws if a binding fails
+     */
+    private void initializeAfterBind() throws Exception {
+        // Bind the admin interface next to the calculator
+        admin = new CalculatorAdminImplementation(calculator);
+        if (localAccess) {
+            CalculatorClientFactory.registerLocal(admin);
+        }
+        registry.bind("CalculatorAdmin", admin);
+
+        exportEndpoints();
+
+        if (handoffPort > 0) {
+            Thread listener = new Thread(this::awaitHandoff, "calculator-handoff");
+            listener.setDaemon(true);
+            listener.start();
+        }
+    }
+
+    /**
+     * Export and bind the extra endpoints. Each is a proxy forwarding to the calculator,
+     * exported on its own port so that RMI gives it its own listener. Without configured ports
+     * each endpoint is exported on port 0 with its own socket factory, which RMI never shares
+     * between exports, so the system picks a free port at the moment the listener opens.
+     *
+     * @throws Exception throws if an endpoint cannot be exported or bound
+     */
+    private void exportEndpoints() throws Exception {
+        int count = endpointPorts.length > 0 ? endpointPorts.length : endpoints;
+        RMIClientSocketFactory csf = null;
+        if (compressionThreshold > 0) {
+            csf = new CompressingClientSocketFactory(compressionThreshold);
+        }
+        for (int i = 0; i < count; i++) {
+            Calculator endpoint = (Calculator) Proxy.newProxyInstance(Calculator.class.getClassLoader(),
+                    new Class<?>[]{Calculator.class}, new Forwarder(calculator));
+            EndpointSocketFactory ssf = new EndpointSocketFactory(compressionThreshold > 0
+                    ? new CompressingServerSocketFactory(compressionThreshold) : null);
+            export(endpoint, endpointPorts.length > 0 ? endpointPorts[i] : 0, csf, ssf);
+            System.out.println("Calculator-" + i + " listens on port " + ssf.getPort() + ".");
+            exportedEndpoints.add(endpoint);
+            if (localAccess) {
+                CalculatorClientFactory.registerLocal(endpoint);
+            }
+            registry.rebind("Calculator-" + i, endpoint);
+        }
+    }
+
+    /**
+     * Export an endpoint, waiting for a server that is handing off to this one to free the port
+     */
+    private static void export(Calculator endpoint, int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf)
+            throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                UnicastRemoteObject.exportObject(endpoint, port, csf, ssf);
+                return;
+            } catch (ExportException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * @param value a number of endpoints, or "cores" for one per available processor
+     */
+    private static int parseEndpoints(String value) {
+        return "cores".equals(value) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value);
+    }
+
+    /**
+     * @param value comma separated ports, may be empty
+     */
+    private static int[] parsePorts(String value) {
+        if (value.isBlank()) {
+            return new int[0];
+        }
+        String[] parts = value.split(",");
+        int[] ports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ports[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ports;
+    }
+
+    /**
+     * Wait for a new server to take over, then stop serving.
+     * A failed handoff leaves this server serving and listening again.
+     */
+    private void awaitHandoff() {
+        while (true) {
+            Socket socket;
+            try (ServerSocket listener = new ServerSocket(handoffPort, 1, InetAddress.getLoopbackAddress())) {
+                socket = listener.accept();
+            } catch (IOException e) {
+                System.err.println("Calculator handoff listener exception: " + e);
+                return;
+            }
+            try (socket) {
+                long millis = StateHandoff.send(calculator, socket, this::releaseRegistry, this::restoreRegistry);
+                System.out.println("Calculator handed off, calls were held for " + millis + " ms.");
+                break;
+            } catch (Exception e) {
+                System.err.println("Calculator handoff failed, still serving: " + e);
+            }
+        }
+        try {
+            for (Calculator endpoint : exportedEndpoints) {
+                UnicastRemoteObject.unexportObject(endpoint, true);
+            }
+            UnicastRemoteObject.unexportObject(calculator, true);
+            UnicastRemoteObject.unexportObject(admin, true);
+        } catch (Exception e) {
+            System.err.println("Calculator unexport exception: " + e);
+        }
+        calculator.close();
+    }
+
+    /**
+     * Free the registry port for the new server
+     */
+    private void releaseRegistry() throws Exception {
+        if (localAccess) {
+            CalculatorClientFactory.unregisterLocal(calculator);
+            CalculatorClientFactory.unregisterLocal(admin);
+        }
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+
+    /**
+     * Bind everything again after a handoff failed past {@link #releaseRegistry()}
+     */
+    private void restoreRegistry() throws Exception {
+        bindCalculator();
+        registry.bind("CalculatorAdmin", admin);
+        if (localAccess) {
+            CalculatorClientFactory.registerLocal(admin);
+        }
+    }
+
+    /**
+     * Opens the listener of one extra endpoint and remembers the port it is bound to. Equal
+     * only to itself, so that RMI gives every endpoint exported on port 0 a listener of its own.
+     */
+    private static final class EndpointSocketFactory implements RMIServerSocketFactory {
+        // Creates the sockets of the compressed transport, null for plain ones
+        private final RMIServerSocketFactory delegate;
+        private volatile int port;
+
+        EndpointSocketFactory(RMIServerSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            ServerSocket socket = delegate != null ? delegate.createServerSocket(port) : new ServerSocket(port);
+            this.port = socket.getLocalPort();
+            return socket;
+        }
+
+        /**
+         * @return the port the listener is bound to, 0 before the endpoint is exported
+         */
+        int getPort() {
+            return port;
+        }
+    }
+
+    /**
+     * Forwards the calls of an extra endpoint to the shared calculator
+     */
+    private static final class Forwarder implements InvocationHandler {
+        private final CalculatorImplementation calculator;
+
+        Forwarder(CalculatorImplementation calculator) {
+            this.calculator = calculator;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Calculator endpoint";
+                }
+            }
+            try {
+                return method.invoke(calculator, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Start the server on the given port, 1099 by default.
+     * With --training the server runs one client session against itself and exits,
+     * which is used to record the class list of a class data sharing archive.
+     * With --handoff the server takes over from the server listening on the given handoff port.
+     *
+     * @param args optional port, --training flag and --handoff port
+     */
     public static void main(String[] args) {
-        new CalculatorServer().run(1099);
+        int port = Registry.REGISTRY_PORT;
+        boolean training = false;
+        CalculatorServer server = new CalculatorServer();
+        for (int i = 0; i < args.length; i++) {
+            if ("--training".equals(args[i])) {
+                training = true;
+            } else if ("--handoff".equals(args[i])) {
+                server.setHandoffFrom(Integer.parseInt(args[++i]));
+            } else {
+                port = Integer.parseInt(args[i]);
+            }
+        }
+        server.run(port);
+        if (training) {
+            new CalculatorClient().run("localhost", port);
+            System.exit(0);
+        }
     }
 }
\ No newline at end of file
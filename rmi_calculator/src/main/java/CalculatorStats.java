@@ -0,0 +1,73 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of server wide counters, returned by the admin interface
+ */
+public class CalculatorStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long clients;
+    private final long totalValues;
+    private final long totalCalls;
+    private final double callsPerSecond;
+    private final long inFlight;
+    private final boolean draining;
+
+    public CalculatorStats(long clients, long totalValues, long totalCalls, double callsPerSecond,
+                           long inFlight, boolean draining) {
+        this.clients = clients;
+        this.totalValues = totalValues;
+        this.totalCalls = totalCalls;
+        this.callsPerSecond = callsPerSecond;
+        this.inFlight = inFlight;
+        this.draining = draining;
+    }
+
+    /**
+     * @return the number of clients holding a stack
+     */
+    public long getClients() {
+        return clients;
+    }
+
+    /**
+     * @return the number of values stored across all clients
+     */
+    public long getTotalValues() {
+        return totalValues;
+    }
+
+    /**
+     * @return the number of calls admitted since the server started
+     */
+    public long getTotalCalls() {
+        return totalCalls;
+    }
+
+    /**
+     * @return the admitted calls per second since the previous snapshot, or since the start
+     */
+    public double getCallsPerSecond() {
+        return callsPerSecond;
+    }
+
+    /**
+     * @return the number of admitted calls that have not finished yet
+     */
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return whether new calls are being rejected
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("clients=%d values=%d calls=%d calls/s=%.1f inFlight=%d draining=%b",
+                clients, totalValues, totalCalls, callsPerSecond, inFlight, draining);
+    }
+}
@@ -0,0 +1,105 @@
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.ServerNotActiveException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the hot paths of a calculator until the JIT compiler has caught up, so that
+ * the first real calls after a deploy do not run in the interpreter.
+ * The calculator is exercised in rounds against a scratch client through its exported stub
+ * over loopback, so that RMI marshalling and dispatch are compiled along with the calculator;
+ * warm-up stops once a round triggers almost no further compilation, or after a bounded
+ * number of rounds. The calls go through admission and the counters like any other, so that
+ * those paths are compiled too, but the scratch client is exempt from the rate limit, which
+ * would otherwise reject most of them. Afterwards the scratch client is evicted and the
+ * counters, hot client reports and lane statistics are reset. The warm-up must therefore
+ * run before the calculator serves calls.
+ */
+public class CalculatorWarmup {
+    private static final String SCRATCH_CLIENT = "__warmup__";
+    private static final String[] OPERATORS = {"min", "max", "lcm", "gcd"};
+    // Each iteration makes 47 remote calls
+    private static final int ITERATIONS_PER_ROUND = 256;
+    private static final int MIN_ROUNDS = 3;
+    private static final int MAX_ROUNDS = 20;
+    // A round that adds less JIT time than this is taken to mean the hot paths are compiled;
+    // the RMI transport keeps the compiler busy with a trickle of small methods well after that
+    private static final long SETTLED_COMPILE_MILLIS = 20;
+
+    private final CalculatorImplementation calculator;
+
+    public CalculatorWarmup(CalculatorImplementation calculator) {
+        this.calculator = calculator;
+    }
+
+    /**
+     * Run the warm-up, then remove the scratch client and every count its calls left behind
+     *
+     * @return the time the warm-up took in milliseconds
+     */
+    public long run() {
+        long start = System.nanoTime();
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+        long compileMillis = monitored ? compiler.getTotalCompilationTime() : 0;
+        calculator.exemptFromRateLimit(SCRATCH_CLIENT);
+        try {
+            Calculator stub = (Calculator) RemoteObject.toStub(calculator);
+            for (int round = 1; round <= MAX_ROUNDS; round++) {
+                runRound(stub);
+                if (monitored) {
+                    long total = compiler.getTotalCompilationTime();
+                    if (round >= MIN_ROUNDS && total - compileMillis < SETTLED_COMPILE_MILLIS) {
+                        break;
+                    }
+                    compileMillis = total;
+                } else if (round >= MIN_ROUNDS) {
+                    break;
+                }
+            }
+        } catch (RemoteException e) {
+            throw new IllegalStateException("Calculator is not exported", e);
+        } finally {
+            calculator.exemptFromRateLimit(null);
+            calculator.evictClient(SCRATCH_CLIENT);
+            calculator.resetStats();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private void runRound(Calculator stub) {
+        int[] bulk = new int[64];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = i * 7 + 1;
+        }
+        for (int i = 0; i < ITERATIONS_PER_ROUND; i++) {
+            try {
+                stub.pushValue(i, SCRATCH_CLIENT);
+                stub.pop(SCRATCH_CLIENT);
+                stub.isEmpty(SCRATCH_CLIENT);
+                stub.size(SCRATCH_CLIENT);
+                for (String operator : OPERATORS) {
+                    stub.pushValue(12, SCRATCH_CLIENT);
+                    stub.pushValue(18, SCRATCH_CLIENT);
+                    stub.pushValue(24, SCRATCH_CLIENT);
+                    stub.pushOperation(operator, 2, SCRATCH_CLIENT);
+                    stub.pushOperation(operator, SCRATCH_CLIENT);
+                    stub.pop(SCRATCH_CLIENT);
+                    stub.pushValue(i, SCRATCH_CLIENT);
+                    stub.pushValue(35, SCRATCH_CLIENT);
+                    stub.pushWideOperation(operator, SCRATCH_CLIENT);
+                    stub.popLong(SCRATCH_CLIENT);
+                }
+                stub.pushValues(new PackedValues(bulk), SCRATCH_CLIENT);
+                stub.popValues(bulk.length, SCRATCH_CLIENT);
+                stub.atomically(List.of(StackOp.push(i), StackOp.push(3), StackOp.operation("max"), StackOp.pop()),
+                        SCRATCH_CLIENT);
+            } catch (RemoteException | ServerNotActiveException e) {
+                // Admission control or quotas may reject the scratch client; that path is hot too
+            }
+        }
+    }
+}
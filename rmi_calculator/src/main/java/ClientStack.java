@@ -0,0 +1,682 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The values of one client together with their memory accounting.
+ * The estimate is kept up to date on every push and pop, so reading the usage of a
+ * client never walks its values. Not thread safe, callers synchronize on the instance.
+ * A stack left untouched can be compacted into delta coded varints, the form PackedValues
+ * uses on the wire, and is inflated again by the next call that needs its values. The
+ * estimate keeps describing the inflated form, so quotas do not depend on the tier.
+ * A stack growing past two spill segments moves its bottom segment to a SpillFile, and pops
+ * read the last spilled segment back once the values in memory run out, so the heap held by
+ * a client stays bounded however deep its stack grows. Spilled values are below every value
+ * in memory: index 0 is always the bottom of the whole stack.
+ * Every change also publishes the depth and top value in one volatile long, which readers
+ * may load without taking the lock. Changes made of several steps run as a batch and
+ * publish once at its end, so readers never see their intermediate states.
+ * Values only change at the top, so the lowest depth a stack shrank to tells which of its
+ * values a handoff has to send again.
+ */
+class ClientStack {
+    // Slot of the int array, the estimated heap cost of every value now that none is boxed
+    static final int VALUE_BYTES = 4;
+    static final int REFERENCE_BYTES = 4;
+    // Slot of the long array, BigInteger results add their object and magnitude array
+    static final int WIDE_VALUE_BYTES = 8;
+    static final int BIG_VALUE_BYTES = WIDE_VALUE_BYTES + REFERENCE_BYTES + 40;
+
+    private static final int INITIAL_CAPACITY = 10;
+
+    // The values while the stack is in use, bottom first, null while it is compacted
+    private int[] values = new int[INITIAL_CAPACITY];
+    // The number of values in use in values
+    private int count;
+    // The compacted values, their count and the top one, only while values is null
+    private byte[] packed;
+    private int packedSize;
+    private int packedTop;
+    // Set by every access to the values, cleared by each compaction sweep
+    private boolean touched;
+    // Where and in which segment size to spill, 0 values to keep everything in memory
+    private Path spillDir;
+    private int spillValues;
+    // The spilled bottom segments, null until the first spill
+    private SpillFile spill;
+    private long bytes;
+    // Depth in the high half and top value in the low half, as of the last change
+    private volatile long published;
+    // Nesting depth of the running batches, publishing waits until it drops back to 0
+    private int batchDepth;
+    // Server wide count of stored values, null once the stack is detached
+    private LongAdder totalValues;
+    // Results of wide operations, kept apart from the int values and created on first use.
+    // An entry is a BigInteger if bigs holds one at its index, otherwise the long in wide.
+    private long[] wide;
+    private BigInteger[] bigs;
+    private int wideSize;
+    // Threads blocked in awaitPop, oldest first, created on first use
+    private ArrayDeque<Waiter> waiters;
+    // Lowest depth since the last takeUnchanged, the values below it have not changed since
+    private int lowWater;
+
+    private static final AtomicLongFieldUpdater<ClientStack> PUBLISHED =
+            AtomicLongFieldUpdater.newUpdater(ClientStack.class, "published");
+
+    /**
+     * @param totalValues the server wide count of stored values to keep up to date
+     */
+    ClientStack(LongAdder totalValues) {
+        this.totalValues = totalValues;
+    }
+
+    int size() {
+        return spilled() + (values != null ? count : packedSize);
+    }
+
+    /**
+     * Read the depth and top value published by the last change, without the lock
+     *
+     * @return the depth in the high half and, if the depth is not 0, the top value in the low half
+     */
+    long published() {
+        return published;
+    }
+
+    static int depthOf(long published) {
+        return (int) (published >>> 32);
+    }
+
+    static int topOf(long published) {
+        return (int) published;
+    }
+
+    /**
+     * Hold back publishing until the matching endBatch
+     */
+    void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Publish the changes made since the matching beginBatch
+     */
+    void endBatch() {
+        if (--batchDepth == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Publish the current depth and top value, called at the end of every change
+     */
+    private void publish() {
+        int size = size();
+        int top = size == 0 ? 0 : top();
+        // Ordered store: readers see a consistent pair without a full fence on the writer
+        PUBLISHED.lazySet(this, ((long) size << 32) | (top & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Read the top value where it currently lives, without marking the stack used or inflating
+     * it, so that publishing leaves an idle stack idle. The caller checks that there is one.
+     *
+     * @return the top value
+     */
+    private int top() {
+        if (values != null && count > 0) {
+            return values[count - 1];
+        }
+        if (values == null && packedSize > 0) {
+            return packedTop;
+        }
+        try {
+            return spill.get(spilled() - 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spilled values", e);
+        }
+    }
+
+    /**
+     * @return the number of values held on disk
+     */
+    int spilled() {
+        return spill == null ? 0 : spill.size();
+    }
+
+    /**
+     * Spill the bottom of the stack once it grows past two segments
+     *
+     * @param dir           the directory for the spill file
+     * @param segmentValues the number of values per segment, 0 to stop spilling
+     */
+    void spillTo(Path dir, int segmentValues) {
+        spillDir = dir;
+        spillValues = segmentValues;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return true while the values are compacted
+     */
+    boolean isCompacted() {
+        return values == null;
+    }
+
+    /**
+     * Compact the values if they were not accessed since the previous call
+     *
+     * @return true if the stack was compacted by this call
+     */
+    boolean compactIfIdle() {
+        if (touched) {
+            touched = false;
+            return false;
+        }
+        if (values == null) {
+            return false;
+        }
+        int size = count;
+        byte[] buffer = new byte[size * 5];
+        int length = 0;
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int value = values[i];
+            int delta = value - previous;
+            length = PackedValues.writeVarint(buffer, length, (delta << 1) ^ (delta >> 31));
+            previous = value;
+        }
+        packed = size == 0 ? null : Arrays.copyOf(buffer, length);
+        packedSize = size;
+        packedTop = size == 0 ? 0 : values[size - 1];
+        values = null;
+        count = 0;
+        return true;
+    }
+
+    /**
+     * Get the values in their fast form, inflating them if they were compacted
+     *
+     * @return the values, of which the first count are in use
+     */
+    private int[] values() {
+        touched = true;
+        if (values == null) {
+            values = unpack();
+            count = packedSize;
+            packed = null;
+            packedSize = 0;
+        }
+        return values;
+    }
+
+    /**
+     * Grow the values so that they hold the given number beyond those in use.
+     * The values are inflated first, count is only valid once they are.
+     *
+     * @param extra the number of values to make room for
+     * @return the values
+     */
+    private int[] ensureRoom(int extra) {
+        int[] values = values();
+        int capacity = count + extra;
+        if (capacity > values.length) {
+            values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, Math.max(capacity, values.length * 2)));
+            this.values = values;
+        }
+        return values;
+    }
+
+    /**
+     * Decode the compacted values, bottom first
+     */
+    private int[] unpack() {
+        int[] array = new int[packedSize];
+        int[] position = {0};
+        int previous = 0;
+        try {
+            for (int i = 0; i < array.length; i++) {
+                int zigzag = PackedValues.readVarint(packed, position);
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                array[i] = previous;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt compacted stack", e);
+        }
+        return array;
+    }
+
+    /**
+     * Get the estimated heap cost of the stored values
+     *
+     * @return the estimated number of bytes
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Get a value by position, 0 being the bottom of the stack
+     *
+     * @param index the position of the value
+     * @return the value
+     */
+    int get(int index) {
+        int spilled = spilled();
+        if (index >= spilled) {
+            int[] values = values();
+            if (index - spilled >= count) {
+                throw new ArrayIndexOutOfBoundsException(index);
+            }
+            return values[index - spilled];
+        }
+        try {
+            return spill.get(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spilled values", e);
+        }
+    }
+
+    void push(int val) {
+        int[] values = ensureRoom(1);
+        values[count++] = val;
+        bytes += VALUE_BYTES;
+        if (totalValues != null) {
+            totalValues.increment();
+        }
+        if (spillValues > 0 && count >= 2 * (spill != null ? spill.segmentValues() : spillValues)) {
+            spillBottom();
+        }
+        if (batchDepth == 0) {
+            PUBLISHED.lazySet(this, ((long) size() << 32) | (val & 0xFFFFFFFFL));
+        }
+    }
+
+    /**
+     * Move the bottom segment of the values in memory to the spill file
+     */
+    private void spillBottom() {
+        if (spill == null) {
+            spill = new SpillFile(spillDir, spillValues);
+        }
+        int[] segment = Arrays.copyOf(values, spill.segmentValues());
+        try {
+            spill.append(segment, (long) segment.length * VALUE_BYTES);
+        } catch (IOException e) {
+            // Keep the values in memory rather than fail the push that triggered the spill
+            System.err.println("Client stack spill failed, spilling disabled for the stack: " + e);
+            spillValues = 0;
+            return;
+        }
+        count -= segment.length;
+        System.arraycopy(values, segment.length, values, 0, count);
+    }
+
+    /**
+     * Read the last spilled segment back below the values in memory
+     */
+    private void pageIn() {
+        try {
+            int[] segment = spill.removeLast();
+            int[] values = ensureRoom(segment.length);
+            System.arraycopy(values, 0, values, segment.length, count);
+            System.arraycopy(segment, 0, values, 0, segment.length);
+            count += segment.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spilled values", e);
+        }
+    }
+
+    /**
+     * Remove the top value, the caller checks that the stack is not empty
+     *
+     * @return the removed value
+     */
+    int pop() {
+        values();
+        if (count == 0 && spilled() > 0) {
+            pageIn();
+        }
+        if (count == 0) {
+            throw new EmptyStackException();
+        }
+        int val = values[--count];
+        bytes -= VALUE_BYTES;
+        int size = spilled() + count;
+        if (size < lowWater) {
+            lowWater = size;
+        }
+        if (totalValues != null) {
+            totalValues.decrement();
+        }
+        if (batchDepth == 0) {
+            publish();
+        }
+        return val;
+    }
+
+    /**
+     * Drop every value above the given depth
+     *
+     * @param size the depth to shrink the stack to
+     */
+    void truncate(int size) {
+        if (size < spilled()) {
+            truncateMemory(0);
+            try {
+                // Whole segments above the new depth are dropped unread
+                while (spilled() - spill.segmentValues() >= size) {
+                    bytes -= spill.lastBytes();
+                    if (totalValues != null) {
+                        totalValues.add(-spill.segmentValues());
+                    }
+                    spill.dropLast();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot shrink spilled values", e);
+            }
+            if (size < spilled()) {
+                pageIn();
+            }
+        }
+        truncateMemory(size - spilled());
+        if (size < lowWater) {
+            lowWater = size;
+        }
+        if (batchDepth == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Take the depth below which no value changed since the previous call, a new stack
+     * has not been taken before so every value counts as changed
+     *
+     * @return the number of bottom values unchanged since the previous call
+     */
+    int takeUnchanged() {
+        int unchanged = lowWater;
+        lowWater = size();
+        return unchanged;
+    }
+
+    /**
+     * Drop every value in memory above the given depth
+     *
+     * @param size the number of values in memory to keep
+     */
+    private void truncateMemory(int size) {
+        values();
+        if (size < count) {
+            bytes -= (long) (count - size) * VALUE_BYTES;
+            if (totalValues != null) {
+                totalValues.add(size - count);
+            }
+            count = size;
+        }
+    }
+
+    int wideSize() {
+        return wideSize;
+    }
+
+    /**
+     * Push the result of a wide operation that fits in a long
+     *
+     * @param val the result
+     */
+    void pushWide(long val) {
+        if (wide == null) {
+            wide = new long[4];
+        } else if (wideSize == wide.length) {
+            wide = Arrays.copyOf(wide, wideSize * 2);
+            if (bigs != null) {
+                bigs = Arrays.copyOf(bigs, wide.length);
+            }
+        }
+        wide[wideSize++] = val;
+        bytes += WIDE_VALUE_BYTES;
+        if (totalValues != null) {
+            totalValues.increment();
+        }
+    }
+
+    /**
+     * Push the result of a wide operation that does not fit in a long
+     *
+     * @param val the result
+     */
+    void pushBig(BigInteger val) {
+        pushWide(0);
+        if (bigs == null) {
+            bigs = new BigInteger[wide.length];
+        }
+        bigs[wideSize - 1] = val;
+        bytes += bigBytes(val) - WIDE_VALUE_BYTES;
+    }
+
+    /**
+     * @return true if the top wide result does not fit in a long, the caller checks that there is one
+     */
+    boolean isTopBig() {
+        return bigs != null && bigs[wideSize - 1] != null;
+    }
+
+    /**
+     * Remove the top wide result that fits in a long, the caller checks isTopBig first
+     *
+     * @return the removed result
+     */
+    long popWide() {
+        long val = wide[--wideSize];
+        bytes -= WIDE_VALUE_BYTES;
+        if (totalValues != null) {
+            totalValues.decrement();
+        }
+        return val;
+    }
+
+    /**
+     * Remove the top wide result whatever its size, the caller checks that there is one
+     *
+     * @return the removed result
+     */
+    BigInteger popBig() {
+        if (!isTopBig()) {
+            return BigInteger.valueOf(popWide());
+        }
+        BigInteger val = bigs[wideSize - 1];
+        bigs[wideSize - 1] = null;
+        bytes -= bigBytes(val) - WIDE_VALUE_BYTES;
+        popWide();
+        return val;
+    }
+
+    /**
+     * Copy the wide results, bottom first
+     *
+     * @return Long and BigInteger results
+     */
+    Number[] wideToArray() {
+        Number[] array = new Number[wideSize];
+        for (int i = 0; i < wideSize; i++) {
+            array[i] = bigs != null && bigs[i] != null ? bigs[i] : (Number) wide[i];
+        }
+        return array;
+    }
+
+    private static long bigBytes(BigInteger val) {
+        return BIG_VALUE_BYTES + val.bitLength() / 8;
+    }
+
+    /**
+     * Stop counting this stack towards the server wide total, once it has been evicted.
+     * Calls still holding the stack may change it afterwards without skewing the total.
+     *
+     * @return the number of values the stack held
+     */
+    int detach() {
+        if (totalValues != null) {
+            totalValues.add(-size() - wideSize);
+            totalValues = null;
+        }
+        int size = size() + wideSize;
+        if (spill != null) {
+            // Calls still holding the stack only see the values in memory from now on
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.err.println("Client stack spill file close failed: " + e);
+            }
+            spill = null;
+        }
+        return size;
+    }
+
+    /**
+     * Register the calling thread to receive the next value pushed to the stack
+     *
+     * @return the waiter to park on
+     */
+    Waiter addWaiter() {
+        if (waiters == null) {
+            waiters = new ArrayDeque<>();
+        }
+        Waiter waiter = new Waiter(Thread.currentThread());
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * Withdraw a waiter that gave up
+     *
+     * @param waiter the waiter to remove
+     * @return true if it was still waiting, false if a value was handed to it meanwhile
+     */
+    boolean removeWaiter(Waiter waiter) {
+        return waiters != null && waiters.remove(waiter);
+    }
+
+    /**
+     * Hand a value straight to the oldest waiter instead of pushing it
+     *
+     * @param val the value being pushed
+     * @return true if a waiter took the value
+     */
+    boolean handOff(int val) {
+        if (waiters == null || waiters.isEmpty()) {
+            return false;
+        }
+        waiters.poll().complete(val);
+        return true;
+    }
+
+    /**
+     * Wake every waiter without a value, once the stack has moved to another server
+     */
+    void cancelWaiters() {
+        while (waiters != null && !waiters.isEmpty()) {
+            waiters.poll().cancel();
+        }
+    }
+
+    /**
+     * Copy the values held in memory, bottom first, without inflating compacted values
+     *
+     * @param from the first value to copy, 0 being the lowest value in memory
+     * @return the values from there to the top
+     */
+    int[] memoryToArray(int from) {
+        if (values == null) {
+            int[] unpacked = unpack();
+            return from == 0 ? unpacked : Arrays.copyOfRange(unpacked, from, packedSize);
+        }
+        return Arrays.copyOfRange(values, from, count);
+    }
+
+    /**
+     * Copy consecutive spilled values, bottom first
+     *
+     * @param from   the position of the first value, 0 being the bottom of the stack
+     * @param values the array to fill from its start
+     * @return the number of values copied, fewer than asked once the spilled values run out
+     */
+    int copySpilled(int from, int[] values) {
+        int count = Math.max(0, Math.min(values.length, spilled() - from));
+        if (count > 0) {
+            try {
+                spill.read(from, values, 0, count);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read spilled values", e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pop values to waiters, oldest waiter first, until either runs out
+     */
+    void serveWaiters() {
+        while (waiters != null && !waiters.isEmpty() && !isEmpty()) {
+            waiters.poll().complete(pop());
+        }
+    }
+
+    /**
+     * A thread parked until a value is handed to it
+     */
+    static final class Waiter {
+        private final Thread thread;
+        private volatile boolean done;
+        private int value;
+        private boolean cancelled;
+
+        private Waiter(Thread thread) {
+            this.thread = thread;
+        }
+
+        private void complete(int val) {
+            value = val;
+            done = true;
+            LockSupport.unpark(thread);
+        }
+
+        private void cancel() {
+            cancelled = true;
+            done = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * @return true once a value was handed over
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return true if the waiter was woken without a value, valid once isDone returns true
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return the handed over value, valid once isDone returns true
+         */
+        int getValue() {
+            return value;
+        }
+    }
+}
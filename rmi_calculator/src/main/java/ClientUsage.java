@@ -0,0 +1,60 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of the resources held by one client, returned by the admin interface
+ */
+public class ClientUsage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String clientID;
+    private final int depth;
+    private final long bytes;
+    private final int maxDepth;
+    private final long maxBytes;
+
+    public ClientUsage(String clientID, int depth, long bytes, int maxDepth, long maxBytes) {
+        this.clientID = clientID;
+        this.depth = depth;
+        this.bytes = bytes;
+        this.maxDepth = maxDepth;
+        this.maxBytes = maxBytes;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return the number of values on the client's stack
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the estimated heap bytes held by the client's values
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the depth quota, 0 if unlimited
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the memory quota in bytes, 0 if unlimited
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return clientID + ": depth=" + depth + "/" + (maxDepth == 0 ? "unlimited" : maxDepth)
+                + " bytes=" + bytes + "/" + (maxBytes == 0 ? "unlimited" : maxBytes);
+    }
+}
@@ -0,0 +1,140 @@
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Flat combining for many threads calling on the same client. Each client has its own
+ * publication record: a calling thread publishes its operation there, and whichever caller
+ * takes the combiner role then runs every published operation in one batch while the others
+ * wait for their results. The combiner takes the client's stack monitor once for the whole
+ * batch, so the operations re-enter a monitor their thread already owns instead of the monitor
+ * being passed from thread to thread. Uncontended calls take the role at once and run their own
+ * operation without publishing it.
+ * Waiting callers spin and yield briefly and then park; a combiner that gives up the role while
+ * operations are still published wakes the caller of the oldest one to take it over.
+ * The records of evicted clients are dropped, see {@link #forget(String)}.
+ */
+public class CombiningEngine implements StackEngine {
+    // Operations one combiner runs before it hands the role on, so no caller combines forever
+    private static final int MAX_BATCH = 256;
+    // Rounds a waiting caller spins, spinning only holds up the combiner on one core
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 256 : 0;
+    // Times a waiting caller then yields to the combiner before it parks
+    private static final int YIELDS = 16;
+
+    private final Map<String, Combiner> combiners = new ConcurrentHashMap<>();
+    // Finds the stack whose monitor a batch holds, null until a calculator attaches
+    private volatile Function<String, ?> stacks;
+
+    @Override
+    public <T> T execute(String clientID, Task<T> task) throws RemoteException {
+        Combiner combiner = combiners.get(clientID);
+        if (combiner == null) {
+            combiner = combiners.computeIfAbsent(clientID, k -> new Combiner(clientID));
+        }
+        Thread current = Thread.currentThread();
+        if (combiner.owner.get() == current) {
+            // Called from an operation the thread is combining
+            return task.run();
+        }
+        // Nobody is publishing, run directly instead of going through the record
+        if (combiner.published.isEmpty() && combiner.owner.compareAndSet(null, current)) {
+            try {
+                synchronized (combiner.lock()) {
+                    return task.run();
+                }
+            } finally {
+                combiner.combine();
+            }
+        }
+
+        EngineRequest<T> request = new EngineRequest<>(task);
+        combiner.published.offer(request);
+        boolean interrupted = false;
+        int waits = 0;
+        while (!request.isDone()) {
+            if (combiner.owner.get() == null && combiner.owner.compareAndSet(null, current)) {
+                combiner.combine();
+            } else if (waits < SPINS) {
+                waits++;
+                Thread.onSpinWait();
+            } else if (waits < SPINS + YIELDS) {
+                waits++;
+                Thread.yield();
+            } else {
+                request.park();
+                // The operation is already published, so an interrupt cannot cancel it
+                interrupted |= Thread.interrupted();
+            }
+        }
+        if (interrupted) {
+            current.interrupt();
+        }
+        return request.get();
+    }
+
+    @Override
+    public void attach(Function<String, ?> stacks) {
+        this.stacks = stacks;
+    }
+
+    @Override
+    public void forget(String clientID) {
+        // Callers still holding the record finish on it, later ones start a new one
+        combiners.remove(clientID);
+    }
+
+    @Override
+    public void close() {
+        // No threads of its own, callers do all the work
+    }
+
+    /**
+     * The publication record of one client and its combiner role
+     */
+    private class Combiner {
+        final String clientID;
+        final Queue<EngineRequest<?>> published = new ConcurrentLinkedQueue<>();
+        // The thread holding the combiner role, null while nobody combines
+        final AtomicReference<Thread> owner = new AtomicReference<>();
+
+        Combiner(String clientID) {
+            this.clientID = clientID;
+        }
+
+        /**
+         * @return the monitor a batch holds, the client's stack once a calculator attached
+         */
+        Object lock() {
+            Function<String, ?> stacks = CombiningEngine.this.stacks;
+            return stacks == null ? this : stacks.apply(clientID);
+        }
+
+        /**
+         * Run the published operations and give up the role, called by the owner
+         */
+        void combine() {
+            try {
+                if (!published.isEmpty()) {
+                    synchronized (lock()) {
+                        EngineRequest<?> request;
+                        for (int i = 0; i < MAX_BATCH && (request = published.poll()) != null; i++) {
+                            request.run();
+                        }
+                    }
+                }
+            } finally {
+                owner.set(null);
+                // Operations published meanwhile would wait for a combiner that never comes
+                EngineRequest<?> next = published.peek();
+                if (next != null) {
+                    next.wake();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Socket that frames its traffic and deflates the frames that are large enough to benefit.
+ * Data is buffered until RMI flushes the end of a call, then written as one frame.
+ * Frames below the threshold are sent as is behind a four byte header, so small
+ * single value calls pay no compression cost.
+ */
+public class CompressedSocket extends Socket {
+    // Largest frame written before the buffer is flushed even without an explicit flush
+    private static final int MAX_FRAME = 64 * 1024;
+    // Header bit marking a deflated frame
+    private static final int COMPRESSED = 0x80000000;
+
+    private final int threshold;
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * Create an unconnected socket, used by the server socket to accept connections
+     *
+     * @param threshold the frame size in bytes from which frames are deflated
+     */
+    CompressedSocket(int threshold) {
+        super();
+        this.threshold = threshold;
+    }
+
+    /**
+     * Create a socket connected to the given endpoint
+     *
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param threshold the frame size in bytes from which frames are deflated
+     * @throws IOException throws if the connection cannot be established
+     */
+    CompressedSocket(String host, int port, int threshold) throws IOException {
+        super(host, port);
+        this.threshold = threshold;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = new FrameInputStream(new BufferedInputStream(super.getInputStream()));
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new FrameOutputStream(new BufferedOutputStream(super.getOutputStream()), threshold);
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            // The peer may already be gone, the socket is closed below either way
+        } finally {
+            if (in != null) {
+                ((FrameInputStream) in).release();
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Buffers written bytes and emits them as one frame on flush
+     */
+    private static final class FrameOutputStream extends FilterOutputStream {
+        private final int threshold;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] buffer = new byte[512];
+        private byte[] compressed = new byte[0];
+        private int count;
+
+        FrameOutputStream(OutputStream out, int threshold) {
+            super(out);
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, MAX_FRAME - count);
+                ensureCapacity(chunk);
+                System.arraycopy(b, off, buffer, count, chunk);
+                count += chunk;
+                off += chunk;
+                len -= chunk;
+                if (count == MAX_FRAME) {
+                    writeFrame();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void ensureCapacity(int extra) throws IOException {
+            if (count + extra > MAX_FRAME) {
+                writeFrame();
+            }
+            if (count + extra > buffer.length) {
+                byte[] grown = new byte[Math.min(MAX_FRAME, Math.max(buffer.length * 2, count + extra))];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            if (count < threshold) {
+                writeInt(count);
+                out.write(buffer, 0, count);
+            } else {
+                if (compressed.length < count + 64) {
+                    compressed = new byte[count + 64];
+                }
+                deflater.reset();
+                deflater.setInput(buffer, 0, count);
+                deflater.finish();
+                int length = deflater.deflate(compressed);
+                if (!deflater.finished() || length >= count) {
+                    // Not compressible, send the frame as is
+                    writeInt(count);
+                    out.write(buffer, 0, count);
+                } else {
+                    writeInt(COMPRESSED | length);
+                    writeInt(count);
+                    out.write(compressed, 0, length);
+                }
+            }
+            count = 0;
+        }
+
+        private void writeInt(int v) throws IOException {
+            out.write(v >>> 24);
+            out.write(v >>> 16);
+            out.write(v >>> 8);
+            out.write(v);
+        }
+    }
+
+    /**
+     * Reads frames written by {@link FrameOutputStream} and inflates them when needed
+     */
+    private static final class FrameInputStream extends FilterInputStream {
+        private final Inflater inflater = new Inflater();
+        private byte[] buffer = new byte[512];
+        private byte[] compressed = new byte[0];
+        private int position;
+        private int limit;
+
+        FrameInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !readFrame()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !readFrame()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && (position < limit || readFrame())) {
+                int step = (int) Math.min(n - skipped, limit - position);
+                position += step;
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        void release() {
+            inflater.end();
+        }
+
+        private boolean readFrame() throws IOException {
+            int header;
+            try {
+                header = readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            int length = header & ~COMPRESSED;
+            if ((header & COMPRESSED) == 0) {
+                // The writer never sends an empty frame, and taking one would leave nothing to read
+                if (length == 0) {
+                    throw new IOException("Empty frame");
+                }
+                ensureCapacity(length);
+                readFully(buffer, length);
+            } else {
+                int rawLength = readInt();
+                ensureCapacity(rawLength);
+                // Frames are only sent deflated when that makes them smaller, so the
+                // compressed length is bounded by the raw one before anything is allocated
+                if (length >= rawLength) {
+                    throw new IOException("Corrupt compressed frame length: " + length);
+                }
+                if (compressed.length < length) {
+                    compressed = new byte[length];
+                }
+                readFully(compressed, length);
+                inflater.reset();
+                inflater.setInput(compressed, 0, length);
+                try {
+                    if (inflater.inflate(buffer, 0, rawLength) != rawLength) {
+                        throw new IOException("Corrupt compressed frame");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed frame", e);
+                }
+                length = rawLength;
+            }
+            position = 0;
+            limit = length;
+            return true;
+        }
+
+        private void ensureCapacity(int length) throws IOException {
+            if (length < 0 || length > MAX_FRAME) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, Math.min(MAX_FRAME, buffer.length * 2))];
+            }
+        }
+
+        private void readFully(byte[] b, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(b, read, length - read);
+                if (n < 0) {
+                    throw new EOFException("Truncated frame");
+                }
+                read += n;
+            }
+        }
+
+        private int readInt() throws IOException {
+            int b1 = in.read();
+            int b2 = in.read();
+            int b3 = in.read();
+            int b4 = in.read();
+            if ((b1 | b2 | b3 | b4) < 0) {
+                throw new EOFException();
+            }
+            return (b1 << 24) | (b2 << 16) | (b3 << 8) | b4;
+        }
+    }
+}
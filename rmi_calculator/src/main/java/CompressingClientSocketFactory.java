@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * Client side of the compressed transport.
+ * The factory is serialized into the stub, so clients pick it up from the registry
+ * without any configuration of their own.
+ */
+public class CompressingClientSocketFactory implements RMIClientSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int threshold;
+
+    /**
+     * @param threshold the frame size in bytes from which frames are deflated
+     */
+    public CompressingClientSocketFactory(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return new CompressedSocket(host, port, threshold);
+    }
+
+    // RMI reuses connections per factory, so equal factories must compare equal
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompressingClientSocketFactory
+                && ((CompressingClientSocketFactory) o).threshold == threshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(threshold);
+    }
+}
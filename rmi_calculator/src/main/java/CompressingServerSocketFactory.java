@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMIServerSocketFactory;
+
+/**
+ * Server side of the compressed transport, accepts {@link CompressedSocket} connections
+ */
+public class CompressingServerSocketFactory implements RMIServerSocketFactory {
+    private final int threshold;
+
+    /**
+     * @param threshold the frame size in bytes from which frames are deflated
+     */
+    public CompressingServerSocketFactory(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        return new ServerSocket(port) {
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket = new CompressedSocket(threshold);
+                implAccept(socket);
+                return socket;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompressingServerSocketFactory
+                && ((CompressingServerSocketFactory) o).threshold == threshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(threshold);
+    }
+}
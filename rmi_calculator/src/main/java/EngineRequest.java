@@ -0,0 +1,104 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stack operation handed from the calling thread to the thread of an engine that runs it,
+ * together with its outcome.
+ */
+class EngineRequest<T> {
+    private final StackEngine.Task<T> task;
+    private final Thread caller = Thread.currentThread();
+    private T result;
+    private Throwable failure;
+    private volatile boolean done;
+    // Set before the caller parks, so that run only unparks callers that need it
+    private volatile boolean parked;
+
+    EngineRequest(StackEngine.Task<T> task) {
+        this.task = task;
+    }
+
+    /**
+     * Run the operation and wake the caller
+     */
+    void run() {
+        try {
+            result = task.run();
+        } catch (Throwable e) {
+            failure = e;
+        }
+        done = true;
+        if (parked) {
+            LockSupport.unpark(caller);
+        }
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Park the caller until the operation has run or the caller is woken for another reason,
+     * for callers that may be asked to run operations themselves
+     */
+    void park() {
+        parked = true;
+        // Check again after announcing the park, run may have missed the flag
+        if (!done) {
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Wake the caller while the operation is still waiting to run
+     */
+    void wake() {
+        LockSupport.unpark(caller);
+    }
+
+    /**
+     * Spin for a while and then park until the operation has run
+     *
+     * @param spins the rounds to spin before parking
+     * @return the result of the operation
+     * @throws RemoteException throws if the operation failed
+     */
+    T await(int spins) throws RemoteException {
+        for (int i = 0; i < spins && !done; i++) {
+            Thread.onSpinWait();
+        }
+        boolean interrupted = false;
+        while (!done) {
+            parked = true;
+            // Check again after announcing the park, run may have missed the flag
+            if (!done) {
+                LockSupport.park(this);
+            }
+            // The operation is already queued, so an interrupt cannot cancel it
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return get();
+    }
+
+    /**
+     * Read the outcome of an operation that has run
+     *
+     * @return the result of the operation
+     * @throws RemoteException throws if the operation failed
+     */
+    T get() throws RemoteException {
+        if (failure instanceof RemoteException) {
+            throw (RemoteException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.Serializable;
+
+/**
+ * One entry of a top-K report of the busiest clients
+ */
+public class HotClient implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String clientID;
+    private final long count;
+    private final double perSecond;
+
+    public HotClient(String clientID, long count, double perSecond) {
+        this.clientID = clientID;
+        this.count = count;
+        this.perSecond = perSecond;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return the estimated count over the window, or the peak for reports of levels, never below the true value
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the estimated count per second over the window, 0 for reports of levels
+     */
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d (%.1f/s)", clientID, count, perSecond);
+    }
+}
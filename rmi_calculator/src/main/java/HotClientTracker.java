@@ -0,0 +1,276 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Constant memory heavy-hitters tracker over a sliding window.
+ * Counts are kept in one Count-Min sketch per time slot, so recording is a handful of
+ * atomic adds with no allocation and no locking. Each slot's sketch is split into stripes
+ * picked by the recording thread, so threads on different stripes never add to the same
+ * counter; reports sum a row across the stripes before taking the minimum over the rows.
+ * Clients whose estimate in the current slot beats the threshold are remembered in a bounded
+ * candidate set, taking the place of the weakest candidate once it is full, and top-K reports
+ * are built from the candidates by combining the sketches of the requested slots.
+ * A tracker either sums what is recorded, for rates, or keeps the peak, for levels such as
+ * the depth of a stack; the peak of a client is the highest value it recorded in the window.
+ * Estimates may overcount because of hash collisions, but never undercount.
+ * Reading the system clock costs as much as the rest of a record, so time slots are
+ * found from a coarse clock that one shared daemon thread advances, started with the first tracker.
+ */
+public class HotClientTracker {
+    private static final long CLOCK_TICK_MILLIS = 100;
+    private static volatile long clockMillis = System.currentTimeMillis();
+    // Advances clockMillis, null until the first tracker is created
+    private static ScheduledExecutorService clock;
+
+    private static final int DEPTH = 4;
+    private static final long CLEARING = Long.MIN_VALUE;
+    // Odd multipliers giving each sketch row an independent index
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private final int widthBits;
+    private final int slots;
+    private final long slotMillis;
+    private final int capacity;
+    private final boolean peaks;
+    // Power of two number of stripes per slot, sized by the processors that can record at once
+    private final int stripeBits;
+    // slots x stripes x DEPTH x width counters
+    private final AtomicLongArray counts;
+    // Time slot number each slot currently holds, or CLEARING while it is being reset
+    private final AtomicLongArray slotEpochs;
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+    // Per-slot estimate a client must beat to become a candidate once the set is full
+    private volatile long threshold;
+
+    /**
+     * Create a tracker with a 60 second window in 10 second slots
+     *
+     * @param peaks true to keep the peak of the recorded values, false to sum them
+     */
+    public HotClientTracker(boolean peaks) {
+        this(1024, 6, 10_000, 256, peaks);
+    }
+
+    /**
+     * @param width      counters per sketch row, rounded up to a power of two
+     * @param slots      number of time slots in the window
+     * @param slotMillis length of one time slot in milliseconds
+     * @param capacity   number of candidate clients to keep
+     * @param peaks      true to keep the peak of the recorded values, false to sum them
+     */
+    public HotClientTracker(int width, int slots, long slotMillis, int capacity, boolean peaks) {
+        this.widthBits = 32 - Integer.numberOfLeadingZeros(Math.max(width, 2) - 1);
+        this.slots = slots;
+        this.slotMillis = slotMillis;
+        this.capacity = capacity;
+        this.peaks = peaks;
+        int processors = Math.min(8, Runtime.getRuntime().availableProcessors());
+        this.stripeBits = 32 - Integer.numberOfLeadingZeros(processors - 1);
+        this.counts = new AtomicLongArray(slots * DEPTH << widthBits + stripeBits);
+        this.slotEpochs = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            slotEpochs.set(i, -1);
+        }
+        startClock();
+    }
+
+    /**
+     * Start the shared clock thread unless an earlier tracker did
+     */
+    private static synchronized void startClock() {
+        if (clock == null) {
+            clock = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "calculator-hot-client-clock");
+                thread.setDaemon(true);
+                return thread;
+            });
+            clockMillis = System.currentTimeMillis();
+            clock.scheduleAtFixedRate(() -> clockMillis = System.currentTimeMillis(),
+                    CLOCK_TICK_MILLIS, CLOCK_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Add to a client's count in the current time slot, or raise its peak in a peak tracker
+     *
+     * @param clientID the client
+     * @param amount   the amount to add, or the value reached
+     */
+    public void record(String clientID, long amount) {
+        long epoch = clockMillis / slotMillis;
+        int slot = (int) (epoch % slots);
+        if (slotEpochs.get(slot) != epoch) {
+            rollOver(slot, epoch);
+        }
+        long hash = clientID.hashCode();
+        int stripe = (int) Thread.currentThread().getId() & ((1 << stripeBits) - 1);
+        int base = ((slot << stripeBits) + stripe) * DEPTH << widthBits;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = base + (row << widthBits) + (int) ((hash * SEEDS[row]) >>> (64 - widthBits));
+            estimate = Math.min(estimate, peaks ? raise(index, amount) : counts.addAndGet(index, amount));
+        }
+        // A sum spread over the stripes is judged by its share in this one
+        if (!peaks) {
+            estimate <<= stripeBits;
+        }
+        if (estimate > threshold && !candidates.containsKey(clientID)) {
+            admit(clientID, estimate, epoch);
+        }
+    }
+
+    /**
+     * Raise a counter to the value unless it already holds more
+     *
+     * @return the counter's value afterwards
+     */
+    private long raise(int index, long value) {
+        long current = counts.get(index);
+        while (current < value && !counts.compareAndSet(index, current, value)) {
+            current = counts.get(index);
+        }
+        return Math.max(current, value);
+    }
+
+    /**
+     * Add a client to the candidates. Once the set is full the weakest candidate in the current
+     * slot makes room if the client beats it, and the threshold rises to the weakest candidate,
+     * so that only clients beating it scan the set again until the next rollover.
+     */
+    private synchronized void admit(String clientID, long estimate, long epoch) {
+        if (candidates.size() < capacity * 2) {
+            candidates.put(clientID, Boolean.TRUE);
+            return;
+        }
+        String weakest = null;
+        long weakestEstimate = Long.MAX_VALUE;
+        for (String candidate : candidates.keySet()) {
+            long candidateEstimate = estimate(candidate, epoch, 1);
+            if (candidateEstimate < weakestEstimate) {
+                weakest = candidate;
+                weakestEstimate = candidateEstimate;
+            }
+        }
+        if (weakest != null && estimate > weakestEstimate) {
+            candidates.remove(weakest);
+            candidates.put(clientID, Boolean.TRUE);
+        }
+        threshold = Math.max(threshold, weakestEstimate);
+    }
+
+    /**
+     * Forget every count and candidate, for counts recorded before the tracker should have
+     * started. Must not run while other threads record.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < slots; i++) {
+            slotEpochs.set(i, -1);
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        candidates.clear();
+        threshold = 0;
+    }
+
+    /**
+     * Report the clients with the highest counts, or peaks
+     *
+     * @param k             the number of clients to report
+     * @param windowSeconds the length of the window to report on, capped at the tracked window
+     * @return up to k clients, highest first, with a rate of 0 in a peak tracker
+     */
+    public List<HotClient> top(int k, int windowSeconds) {
+        int windowSlots = (int) Math.max(1, Math.min(slots, (windowSeconds * 1000L + slotMillis - 1) / slotMillis));
+        long epoch = clockMillis / slotMillis;
+        List<HotClient> clients = new ArrayList<>();
+        double seconds = windowSlots * slotMillis / 1000.0;
+        for (String clientID : candidates.keySet()) {
+            long count = estimate(clientID, epoch, windowSlots);
+            if (count > 0) {
+                clients.add(new HotClient(clientID, count, peaks ? 0 : count / seconds));
+            }
+        }
+        clients.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+        return new ArrayList<>(clients.subList(0, Math.min(k, clients.size())));
+    }
+
+    /**
+     * Estimate a client's count, or its peak, over the most recent slots
+     */
+    private long estimate(String clientID, long epoch, int windowSlots) {
+        long hash = clientID.hashCode();
+        long total = 0;
+        for (long e = epoch - windowSlots + 1; e <= epoch; e++) {
+            int slot = (int) (e % slots);
+            if (e < 0 || slotEpochs.get(slot) != e) {
+                continue;
+            }
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int offset = (row << widthBits) + (int) ((hash * SEEDS[row]) >>> (64 - widthBits));
+                long sum = 0;
+                for (int stripe = 0; stripe < 1 << stripeBits; stripe++) {
+                    long count = counts.get((((slot << stripeBits) + stripe) * DEPTH << widthBits) + offset);
+                    sum = peaks ? Math.max(sum, count) : sum + count;
+                }
+                estimate = Math.min(estimate, sum);
+            }
+            total = peaks ? Math.max(total, estimate) : total + estimate;
+        }
+        return total;
+    }
+
+    /**
+     * Claim a slot for a new time slot, clear it and prune the candidate set.
+     * Runs once per slot length, on whichever thread records first. The slot is marked as
+     * clearing while its counters are reset and only then takes the new epoch, so no count
+     * of the new time slot can land before the reset and be wiped by it. Other threads
+     * recording to the slot meanwhile wait for the few microseconds the reset takes.
+     */
+    private void rollOver(int slot, long epoch) {
+        while (true) {
+            long previous = slotEpochs.get(slot);
+            if (previous == CLEARING) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (previous >= epoch) {
+                return;
+            }
+            if (slotEpochs.compareAndSet(slot, previous, CLEARING)) {
+                break;
+            }
+        }
+        int base = slot * DEPTH << widthBits + stripeBits;
+        for (int i = base; i < base + (DEPTH << widthBits + stripeBits); i++) {
+            counts.set(i, 0);
+        }
+        slotEpochs.set(slot, epoch);
+        prune(epoch);
+    }
+
+    /**
+     * Keep only the strongest candidates and raise the admission threshold to the weakest of them
+     */
+    private synchronized void prune(long epoch) {
+        List<HotClient> ranked = new ArrayList<>();
+        for (String clientID : candidates.keySet()) {
+            ranked.add(new HotClient(clientID, estimate(clientID, epoch, slots), 0));
+        }
+        ranked.sort((a, b) -> Long.compare(b.getCount(), a.getCount()));
+        for (int i = capacity; i < ranked.size(); i++) {
+            candidates.remove(ranked.get(i).getClientID());
+        }
+        long weakest = ranked.size() < capacity ? 0 : ranked.get(capacity - 1).getCount();
+        threshold = peaks ? weakest : weakest / slots;
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of the counters of one priority lane, returned by the admin interface
+ */
+public class LaneStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String lane;
+    private final long calls;
+    private final long rejected;
+    private final int queued;
+    private final double queueMicros;
+    private final double queueP99Micros;
+    private final double latencyMicros;
+    private final double latencyP99Micros;
+
+    public LaneStats(String lane, long calls, long rejected, int queued, double queueMicros, double queueP99Micros,
+                     double latencyMicros, double latencyP99Micros) {
+        this.lane = lane;
+        this.calls = calls;
+        this.rejected = rejected;
+        this.queued = queued;
+        this.queueMicros = queueMicros;
+        this.queueP99Micros = queueP99Micros;
+        this.latencyMicros = latencyMicros;
+        this.latencyP99Micros = latencyP99Micros;
+    }
+
+    /**
+     * @return the name of the lane
+     */
+    public String getLane() {
+        return lane;
+    }
+
+    /**
+     * @return the number of calls the lane ran since the server started
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return the number of calls rejected because the lane's queue was full
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of calls waiting in the lane's queue
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the mean time calls waited in the queue, in microseconds
+     */
+    public double getQueueMicros() {
+        return queueMicros;
+    }
+
+    /**
+     * @return the 99th percentile of the time calls waited in the queue, in microseconds
+     */
+    public double getQueueP99Micros() {
+        return queueP99Micros;
+    }
+
+    /**
+     * @return the mean time from entering the lane to the result, in microseconds
+     */
+    public double getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * @return the 99th percentile of the time from entering the lane to the result, in microseconds
+     */
+    public double getLatencyP99Micros() {
+        return latencyP99Micros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: calls=%d rejected=%d queued=%d queue(us) mean=%.1f p99=%.1f latency(us) mean=%.1f p99=%.1f",
+                lane, calls, rejected, queued, queueMicros, queueP99Micros, latencyMicros, latencyP99Micros);
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Compact wire form for bulk value transfers.
+ * Values are delta coded against their predecessor, zigzag mapped and written as
+ * varints, so runs of close values take one or two bytes each instead of the
+ * four bytes plus array header of default serialization.
+ */
+public class PackedValues implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    // Largest encoded form accepted from the wire, 5 bytes per value at most
+    static final int MAX_ENCODED_BYTES = Integer.getInteger("calculator.maxPackedBytes", 64 * 1024 * 1024);
+
+    private int[] values;
+
+    /**
+     * Required by Externalizable, use {@link #PackedValues(int[])} instead
+     */
+    public PackedValues() {
+        this(new int[0]);
+    }
+
+    /**
+     * Wrap the values for transfer, the array is not copied
+     *
+     * @param values the values to transfer
+     */
+    public PackedValues(int[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Get the wrapped values
+     *
+     * @return the values, in the order they were given
+     */
+    public int[] toArray() {
+        return values;
+    }
+
+    /**
+     * Get the number of wrapped values
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        // Sized exactly and checked against the bound the reader applies, in long so that large arrays cannot wrap it
+        long encoded = varintSize(values.length);
+        int last = 0;
+        for (int value : values) {
+            int delta = value - last;
+            encoded += varintSize((delta << 1) ^ (delta >> 31));
+            last = value;
+        }
+        if (encoded > MAX_ENCODED_BYTES) {
+            throw new InvalidObjectException("Too many values to pack: " + values.length + " values take " + encoded + " bytes");
+        }
+        byte[] buffer = new byte[(int) encoded];
+        int length = writeVarint(buffer, 0, values.length);
+        int previous = 0;
+        for (int value : values) {
+            int delta = value - previous;
+            length = writeVarint(buffer, length, (delta << 1) ^ (delta >> 31));
+            previous = value;
+        }
+        out.writeInt(length);
+        out.write(buffer, 0, length);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        // The lengths come from the sender, check them before allocating anything
+        int length = in.readInt();
+        if (length < 1 || length > MAX_ENCODED_BYTES) {
+            throw new InvalidObjectException("Invalid packed values length: " + length);
+        }
+        byte[] buffer = new byte[length];
+        in.readFully(buffer);
+        int[] position = {0};
+        int count = readVarint(buffer, position);
+        // Every value takes at least one byte
+        if (count < 0 || count > buffer.length - position[0]) {
+            throw new InvalidObjectException("Invalid packed values count: " + count);
+        }
+        int[] decoded = new int[count];
+        int previous = 0;
+        for (int i = 0; i < decoded.length; i++) {
+            int zigzag = readVarint(buffer, position);
+            previous += (zigzag >>> 1) ^ -(zigzag & 1);
+            decoded[i] = previous;
+        }
+        values = decoded;
+    }
+
+    /**
+     * Write an unsigned varint into the buffer
+     *
+     * @param buffer the buffer to write to
+     * @param offset the position to start writing at
+     * @param value  the value to write
+     * @return the position after the written bytes
+     */
+    static int writeVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Get the number of bytes {@link #writeVarint} takes for a value
+     *
+     * @param value the value to write
+     * @return the number of bytes, 1 to 5
+     */
+    static int varintSize(int value) {
+        return value == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(value)) / 7;
+    }
+
+    /**
+     * Read an unsigned varint from the buffer
+     *
+     * @param buffer   the buffer to read from
+     * @param position single element holder of the read position, advanced past the varint
+     * @return the decoded value
+     * @throws IOException throws if the varint is malformed
+     */
+    static int readVarint(byte[] buffer, int[] position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= buffer.length) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buffer[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,129 @@
+import java.rmi.RemoteException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits the clients by hash over a fixed number of partitions, each served by one thread.
+ * A partition thread runs the routed operations of its clients one after the other, so
+ * callers on the same clients queue on the partition instead of on the stack monitors.
+ * RMI threads only add the operation to the partition's lock-free queue and wait for it
+ * to run: they spin briefly, since most operations finish within a few microseconds,
+ * and park after that. Idle partition threads park until an operation is queued.
+ * This is a dispatch layer, not an owner of the state: the stacks stay in the calculator's
+ * shared map and every operation still takes its stack's monitor, because awaitPop,
+ * subscriptions, admin reads, compaction and handoff reach the stacks from other threads.
+ */
+public class PartitionedEngine implements StackEngine {
+    // Rounds a waiting thread spins before it parks, spinning only holds up the other side on one core
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+
+    private final Partition[] partitions;
+    private volatile boolean closed;
+
+    /**
+     * Start the partition threads
+     *
+     * @param count the number of partitions, usually one per core
+     */
+    public PartitionedEngine(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Partition count must be positive");
+        }
+        partitions = new Partition[count];
+        for (int i = 0; i < count; i++) {
+            partitions[i] = new Partition("calculator-partition-" + i);
+        }
+        for (Partition partition : partitions) {
+            partition.thread.start();
+        }
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    @Override
+    public <T> T execute(String clientID, Task<T> task) throws RemoteException {
+        Partition partition = partitions[indexOf(clientID)];
+        if (Thread.currentThread() == partition.thread) {
+            return task.run();
+        }
+        if (closed) {
+            throw new RemoteException("Calculator engine is closed");
+        }
+        EngineRequest<T> request = new EngineRequest<>(task);
+        partition.submit(request);
+        // The partition may have stopped after the check above, then nobody takes the request
+        if (closed && partition.queue.remove(request)) {
+            throw new RemoteException("Calculator engine is closed");
+        }
+        return request.await(SPINS);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Partition partition : partitions) {
+            LockSupport.unpark(partition.thread);
+        }
+    }
+
+    private int indexOf(String clientID) {
+        int h = clientID.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % partitions.length;
+    }
+
+    /**
+     * One thread and the queue of operations waiting for it
+     */
+    private class Partition implements Runnable {
+        final Queue<EngineRequest<?>> queue = new ConcurrentLinkedQueue<>();
+        final Thread thread;
+        // Set before the thread parks, so that submitters know to wake it
+        volatile boolean sleeping;
+
+        Partition(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void submit(EngineRequest<?> request) {
+            queue.offer(request);
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                EngineRequest<?> request = queue.poll();
+                if (request != null) {
+                    request.run();
+                    idle = 0;
+                    continue;
+                }
+                if (closed) {
+                    return;
+                }
+                if (idle++ < SPINS) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                idle = 0;
+                sleeping = true;
+                // Check again after announcing the sleep, a submitter may have missed the flag
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs calls in lanes by their expected cost, so that bulk reductions and delayed pops do
+ * not hold up cheap calls. A lane is either a bounded pool of threads with a bounded queue, or
+ * runs its calls on the calling thread with a bound on how many run at once; a call that finds
+ * its lane full is rejected instead of waiting behind it. Running on the calling thread suits
+ * cheap calls, since handing a call of a few hundred nanoseconds to another thread costs more
+ * than running it, and blocking calls, since the calling RMI thread waits for a handed over
+ * call anyway and would otherwise hold a lane thread besides its own.
+ * Every lane records how long its calls waited for a thread and how long they took.
+ */
+public class PriorityLanes {
+    /**
+     * The cost classes calls are sorted into
+     */
+    public enum Lane {
+        // Calls touching a handful of values
+        FAST,
+        // Calls touching at least bulkThreshold values
+        BULK,
+        // Calls that sleep or block for a value
+        SLOW
+    }
+
+    private final Executor[] executors = new Executor[Lane.values().length];
+    private final int bulkThreshold;
+
+    /**
+     * Create the lanes configured by the calculator.*Lane* properties
+     */
+    public PriorityLanes() {
+        // Without threads the fast lane is not capped unless asked, a cap costs every cheap call
+        this(Integer.getInteger("calculator.fastLaneThreads", 0),
+                Integer.getInteger("calculator.fastLaneQueue", Integer.getInteger("calculator.fastLaneThreads", 0) > 0 ? 1024 : 0),
+                Integer.getInteger("calculator.bulkLaneThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("calculator.bulkLaneQueue", 256),
+                Integer.getInteger("calculator.slowLaneThreads", 0),
+                Integer.getInteger("calculator.slowLaneQueue", 1024),
+                Integer.getInteger("calculator.bulkThreshold", 1024));
+    }
+
+    /**
+     * Create lanes with the given sizes. The queue of a lane with threads is the number of calls
+     * that may wait for one of them; the queue of a lane without threads is the number of calls
+     * that may run in it at once on their calling threads, 0 for no limit.
+     *
+     * @param fastThreads   the threads of the fast lane, 0 to run fast calls on the calling thread
+     * @param fastQueue     the queue of the fast lane
+     * @param bulkThreads   the threads of the bulk lane, 0 to run bulk calls on the calling thread
+     * @param bulkQueue     the queue of the bulk lane
+     * @param slowThreads   the threads of the slow lane, 0 to run slow calls on the calling thread
+     * @param slowQueue     the queue of the slow lane
+     * @param bulkThreshold the number of values from which a call goes to the bulk lane
+     */
+    public PriorityLanes(int fastThreads, int fastQueue, int bulkThreads, int bulkQueue,
+                         int slowThreads, int slowQueue, int bulkThreshold) {
+        if (bulkThreshold < 1) {
+            throw new IllegalArgumentException("Bulk threshold must be positive");
+        }
+        checkSize(Lane.FAST, fastThreads, fastQueue);
+        checkSize(Lane.BULK, bulkThreads, bulkQueue);
+        checkSize(Lane.SLOW, slowThreads, slowQueue);
+        this.bulkThreshold = bulkThreshold;
+        executors[Lane.FAST.ordinal()] = new Executor(Lane.FAST, fastThreads, fastQueue);
+        executors[Lane.BULK.ordinal()] = new Executor(Lane.BULK, bulkThreads, bulkQueue);
+        executors[Lane.SLOW.ordinal()] = new Executor(Lane.SLOW, slowThreads, slowQueue);
+    }
+
+    private static void checkSize(Lane lane, int threads, int queue) {
+        if (threads < 0 || queue < 0) {
+            throw new IllegalArgumentException("Negative size for the " + lane.name().toLowerCase() + " lane");
+        }
+        if (threads > 0 && queue == 0) {
+            throw new IllegalArgumentException("The " + lane.name().toLowerCase() + " lane has threads but no queue");
+        }
+    }
+
+    /**
+     * Choose the lane of a call from the number of values it touches
+     *
+     * @param values the number of values the call reads or writes
+     * @return BULK from bulkThreshold values on, FAST below
+     */
+    public Lane classify(int values) {
+        return values >= bulkThreshold ? Lane.BULK : Lane.FAST;
+    }
+
+    /**
+     * Run a call in a lane and wait for its result
+     *
+     * @param lane the lane to run the call in
+     * @param task the call
+     * @return the result of the call
+     * @throws RemoteException throws if the lane is full or the call failed
+     */
+    public <T> T run(Lane lane, StackEngine.Task<T> task) throws RemoteException {
+        return executors[lane.ordinal()].run(task);
+    }
+
+    /**
+     * Take a snapshot of the counters of every lane
+     *
+     * @return the counters in lane order
+     */
+    public List<LaneStats> getStats() {
+        List<LaneStats> stats = new ArrayList<>(executors.length);
+        for (Executor executor : executors) {
+            stats.add(executor.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Forget the counters of every lane
+     */
+    public void resetStats() {
+        for (Executor executor : executors) {
+            executor.resetStats();
+        }
+    }
+
+    /**
+     * Stop the lane threads once the calls already queued have run
+     */
+    public void close() {
+        for (Executor executor : executors) {
+            executor.close();
+        }
+    }
+
+    /**
+     * The threads, queue and counters of one lane
+     */
+    private static final class Executor {
+        private final Lane lane;
+        // Null when the lane runs its calls on the calling thread
+        private final ThreadPoolExecutor pool;
+        // Calls running on their calling thread and how many may, 0 for no limit, without a pool
+        private final AtomicInteger running = new AtomicInteger();
+        private final int limit;
+        private final LongAdder rejected = new LongAdder();
+        private final Histogram queueTime = new Histogram();
+        private final Histogram latency = new Histogram();
+
+        Executor(Lane lane, int threads, int queue) {
+            this.lane = lane;
+            if (threads == 0) {
+                pool = null;
+                limit = queue;
+                return;
+            }
+            limit = 0;
+            String prefix = "calculator-" + lane.name().toLowerCase() + "-lane-";
+            AtomicInteger count = new AtomicInteger();
+            pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queue), r -> {
+                        Thread thread = new Thread(r, prefix + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        <T> T run(StackEngine.Task<T> task) throws RemoteException {
+            long submitted = System.nanoTime();
+            if (pool == null) {
+                if (limit > 0 && running.incrementAndGet() > limit) {
+                    running.decrementAndGet();
+                    rejected.increment();
+                    throw new AdmissionRejectedException("The " + lane.name().toLowerCase() + " lane is full");
+                }
+                try {
+                    return task.run();
+                } finally {
+                    if (limit > 0) {
+                        running.decrementAndGet();
+                    }
+                    queueTime.record(0);
+                    latency.record(System.nanoTime() - submitted);
+                }
+            }
+            EngineRequest<T> request = new EngineRequest<>(() -> {
+                queueTime.record(System.nanoTime() - submitted);
+                try {
+                    return task.run();
+                } finally {
+                    latency.record(System.nanoTime() - submitted);
+                }
+            });
+            try {
+                pool.execute(request::run);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                throw new AdmissionRejectedException("The " + lane.name().toLowerCase() + " lane is full");
+            }
+            // Lane calls take long enough that spinning for them only burns the caller's core
+            return request.await(0);
+        }
+
+        LaneStats stats() {
+            return new LaneStats(lane.name().toLowerCase(), latency.count(), rejected.sum(),
+                    pool == null ? 0 : pool.getQueue().size(),
+                    queueTime.meanMicros(), queueTime.percentileMicros(0.99),
+                    latency.meanMicros(), latency.percentileMicros(0.99));
+        }
+
+        void resetStats() {
+            rejected.reset();
+            queueTime.reset();
+            latency.reset();
+        }
+
+        void close() {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Latencies in buckets of a quarter of a power of two, so that percentiles are within 25%
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets[bucket(nanos)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double meanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, 0 before any call
+         */
+        double percentileMicros(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return upperBound(i) / 1000.0;
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (log - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (log - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int log = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (log - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown when a push would take a client over its stack depth or memory quota.
+ * The stack is left unchanged.
+ */
+public class QuotaExceededException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
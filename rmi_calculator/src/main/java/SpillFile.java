@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The bottom segments of a deep client stack, written out to a local file.
+ * Segments are appended and removed at the end of the file only, as the stack grows past
+ * and shrinks back below them, and single values are read through a small chunk cache so
+ * that a walk over the spilled values reads the file sequentially.
+ * The file is deleted right after it is opened, so that not even a crash leaves it behind;
+ * where open files cannot be deleted it is opened with DELETE_ON_CLOSE and disappears once
+ * the channel is closed. Not thread safe, callers synchronize on the owning stack.
+ */
+final class SpillFile {
+    // Values moved between the file and the heap per read or write
+    private static final int CHUNK_VALUES = 16 * 1024;
+
+    private final Path dir;
+    private final int segmentValues;
+    private FileChannel channel;
+    // Estimated heap cost of each spilled segment, so quotas keep counting spilled values
+    private long[] segmentBytes = new long[4];
+    private int segments;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_VALUES * 4);
+    // Values of the last chunk read, from chunkStart up to chunkEnd
+    private final int[] chunk = new int[CHUNK_VALUES];
+    private long chunkStart;
+    private long chunkEnd;
+
+    /**
+     * @param dir           the directory to create the file in
+     * @param segmentValues the number of values per segment
+     */
+    SpillFile(Path dir, int segmentValues) {
+        this.dir = dir;
+        this.segmentValues = segmentValues;
+    }
+
+    int segmentValues() {
+        return segmentValues;
+    }
+
+    /**
+     * @return the number of values held in the file
+     */
+    int size() {
+        return segments * segmentValues;
+    }
+
+    /**
+     * Append a segment
+     *
+     * @param values the values of the segment, bottom first, exactly segmentValues of them
+     * @param bytes  the estimated heap cost the values had
+     * @throws IOException throws if the file cannot be written
+     */
+    void append(int[] values, long bytes) throws IOException {
+        if (channel == null) {
+            Path file = Files.createTempFile(dir, "calculator-", ".spill");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // The platform keeps open files, DELETE_ON_CLOSE removes it instead
+            }
+        }
+        long position = (long) segments * segmentValues * 4;
+        for (int from = 0; from < values.length; from += CHUNK_VALUES) {
+            int length = Math.min(CHUNK_VALUES, values.length - from);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, from, length);
+            buffer.limit(length * 4);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        if (segments == segmentBytes.length) {
+            segmentBytes = Arrays.copyOf(segmentBytes, segments * 2);
+        }
+        segmentBytes[segments++] = bytes;
+    }
+
+    /**
+     * @return the estimated heap cost of the last segment
+     */
+    long lastBytes() {
+        return segmentBytes[segments - 1];
+    }
+
+    /**
+     * Read the last segment back and remove it from the file
+     *
+     * @return the values of the segment, bottom first
+     * @throws IOException throws if the file cannot be read
+     */
+    int[] removeLast() throws IOException {
+        int[] values = new int[segmentValues];
+        read((long) (segments - 1) * segmentValues, values, 0, segmentValues);
+        dropLast();
+        return values;
+    }
+
+    /**
+     * Remove the last segment without reading it
+     *
+     * @throws IOException throws if the file cannot be shrunk
+     */
+    void dropLast() throws IOException {
+        segments--;
+        if (chunkEnd > size()) {
+            chunkEnd = chunkStart;
+        }
+        if (segments == 0) {
+            close();
+        } else {
+            channel.truncate((long) segments * segmentValues * 4);
+        }
+    }
+
+    /**
+     * Read one spilled value
+     *
+     * @param index the position of the value, 0 being the bottom of the stack
+     * @return the value
+     * @throws IOException throws if the file cannot be read
+     */
+    int get(long index) throws IOException {
+        if (index < chunkStart || index >= chunkEnd) {
+            long start = index - index % CHUNK_VALUES;
+            int count = (int) Math.min(CHUNK_VALUES, size() - start);
+            read(start, count);
+            buffer.asIntBuffer().get(chunk, 0, count);
+            chunkStart = start;
+            chunkEnd = start + count;
+        }
+        return chunk[(int) (index - chunkStart)];
+    }
+
+    /**
+     * Read consecutive spilled values
+     *
+     * @param index  the position of the first value, 0 being the bottom of the stack
+     * @param values the array to fill
+     * @param offset the position in the array of the first value
+     * @param count  the number of values to read
+     * @throws IOException throws if the file cannot be read
+     */
+    void read(long index, int[] values, int offset, int count) throws IOException {
+        for (int from = 0; from < count; from += CHUNK_VALUES) {
+            read(index + from, Math.min(CHUNK_VALUES, count - from));
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.get(values, offset + from, ints.remaining());
+        }
+    }
+
+    /**
+     * Fill the buffer with count values starting at the given index
+     */
+    private void read(long index, int count) throws IOException {
+        buffer.clear();
+        buffer.limit(count * 4);
+        long position = index * 4;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Spill file truncated");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Delete the file and forget every segment
+     */
+    void close() throws IOException {
+        segments = 0;
+        chunkEnd = chunkStart;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import java.rmi.RemoteException;
+import java.util.function.Function;
+
+/**
+ * Decides which thread runs the stack operations of a calculator.
+ * Without an engine every call runs on its own RMI thread under the monitor of the
+ * client's stack; an engine may instead hand the work to threads that own the stacks.
+ */
+public interface StackEngine {
+    /**
+     * A stack operation for one client
+     */
+    interface Task<T> {
+        T run() throws RemoteException;
+    }
+
+    /**
+     * Run an operation on a client's stack and wait for its result
+     *
+     * @param clientID the client whose stack the task touches
+     * @param task     the operation to run
+     * @return the result of the task
+     * @throws RemoteException throws if the task failed
+     */
+    <T> T execute(String clientID, Task<T> task) throws RemoteException;
+
+    /**
+     * Let the engine find the stack of a client, called once by the calculator it serves
+     *
+     * @param stacks returns the current stack of a client, creating it if needed
+     */
+    default void attach(Function<String, ?> stacks) {
+    }
+
+    /**
+     * Drop what the engine keeps about a client whose stack was evicted
+     *
+     * @param clientID the evicted client
+     */
+    default void forget(String clientID) {
+    }
+
+    /**
+     * Stop the engine threads once the queued operations have run
+     */
+    void close();
+}
@@ -0,0 +1,156 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Delivers stack change callbacks to subscribed listeners.
+ * Changes to a client are coalesced: while a notification for the client is queued,
+ * further changes are folded into it, and the listener is told the depth at the time
+ * of delivery. Callbacks run on a small bounded pool so slow listeners cannot tie up
+ * the threads serving calls. Clients without subscribers cost a single map lookup.
+ */
+public class StackNotifier {
+    private static final int THREADS = Integer.getInteger("calculator.notifyThreads", 2);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("calculator.notifyQueue", 1024);
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final ToIntFunction<String> depthOf;
+    private volatile ThreadPoolExecutor dispatcher;
+
+    /**
+     * @param depthOf reads the current depth of a client's stack
+     */
+    public StackNotifier(ToIntFunction<String> depthOf) {
+        this.depthOf = depthOf;
+    }
+
+    /**
+     * Register a listener for a client's stack
+     *
+     * @param listener the listener to call back
+     * @param clientID the client to watch
+     */
+    public void subscribe(CalculatorListener listener, String clientID) {
+        subscriptions.compute(clientID, (k, subscription) -> {
+            if (subscription == null) {
+                subscription = new Subscription();
+            }
+            subscription.listeners.addIfAbsent(listener);
+            return subscription;
+        });
+    }
+
+    /**
+     * Remove a listener from a client's stack
+     *
+     * @param listener the listener to remove
+     * @param clientID the client it was watching
+     */
+    public void unsubscribe(CalculatorListener listener, String clientID) {
+        subscriptions.computeIfPresent(clientID, (k, subscription) -> {
+            subscription.listeners.remove(listener);
+            return subscription.listeners.isEmpty() ? null : subscription;
+        });
+    }
+
+    /**
+     * Copy the subscriptions, used when handing the state to another server
+     *
+     * @return the listeners of each client that has any
+     */
+    public Map<String, List<CalculatorListener>> subscriptions() {
+        Map<String, List<CalculatorListener>> copy = new HashMap<>();
+        subscriptions.forEach((clientID, subscription) -> copy.put(clientID, new ArrayList<>(subscription.listeners)));
+        return copy;
+    }
+
+    /**
+     * Remove every listener of a client that was dropped, after telling them once more
+     *
+     * @param clientID the client that was dropped
+     */
+    public void evicted(String clientID) {
+        Subscription subscription = subscriptions.remove(clientID);
+        if (subscription != null) {
+            schedule(clientID, subscription);
+        }
+    }
+
+    /**
+     * Record that a client's stack changed
+     *
+     * @param clientID the client whose stack changed
+     */
+    public void changed(String clientID) {
+        Subscription subscription = subscriptions.get(clientID);
+        if (subscription != null) {
+            schedule(clientID, subscription);
+        }
+    }
+
+    private void schedule(String clientID, Subscription subscription) {
+        if (!subscription.pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dispatcher().execute(() -> deliver(clientID, subscription));
+        } catch (RejectedExecutionException e) {
+            // Queue full, drop this notification; the next change schedules a new one
+            subscription.pending.set(false);
+        }
+    }
+
+    private void deliver(String clientID, Subscription subscription) {
+        // Clear first so changes made during delivery schedule another notification
+        subscription.pending.set(false);
+        int depth = depthOf.applyAsInt(clientID);
+        for (CalculatorListener listener : subscription.listeners) {
+            try {
+                listener.stackChanged(clientID, depth);
+            } catch (RemoteException | RuntimeException e) {
+                // The listener is gone or broken, stop calling it
+                unsubscribe(listener, clientID);
+            }
+        }
+    }
+
+    /**
+     * Create the dispatcher pool on first use, servers without subscribers never start it
+     */
+    private ThreadPoolExecutor dispatcher() {
+        ThreadPoolExecutor executor = dispatcher;
+        if (executor == null) {
+            synchronized (this) {
+                executor = dispatcher;
+                if (executor == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                        Thread thread = new Thread(r, "calculator-notify-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    dispatcher = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static final class Subscription {
+        private final CopyOnWriteArrayList<CalculatorListener> listeners = new CopyOnWriteArrayList<>();
+        private final AtomicBoolean pending = new AtomicBoolean();
+    }
+}
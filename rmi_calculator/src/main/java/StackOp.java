@@ -0,0 +1,118 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One step of an atomic sequence passed to {@link Calculator#atomically}.
+ * Steps that read a value (pop, peek, compareAndPop) add it to the results of the
+ * sequence, compareAndPop reporting 1 if it popped and 0 if it did not.
+ */
+public final class StackOp implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Kind {
+        PUSH, POP, PEEK, SWAP, DUP, OPERATION, COMPARE_AND_POP, IF_EMPTY
+    }
+
+    private final Kind kind;
+    private final int value;
+    private final String operator;
+    private final List<StackOp> then;
+    private final List<StackOp> otherwise;
+
+    private StackOp(Kind kind, int value, String operator, List<StackOp> then, List<StackOp> otherwise) {
+        this.kind = kind;
+        this.value = value;
+        this.operator = operator;
+        this.then = then;
+        this.otherwise = otherwise;
+    }
+
+    public static StackOp push(int val) {
+        return new StackOp(Kind.PUSH, val, null, null, null);
+    }
+
+    public static StackOp pop() {
+        return new StackOp(Kind.POP, 0, null, null, null);
+    }
+
+    public static StackOp peek() {
+        return new StackOp(Kind.PEEK, 0, null, null, null);
+    }
+
+    public static StackOp swap() {
+        return new StackOp(Kind.SWAP, 0, null, null, null);
+    }
+
+    public static StackOp dup() {
+        return new StackOp(Kind.DUP, 0, null, null, null);
+    }
+
+    /**
+     * Reduce the whole stack, as {@link Calculator#pushOperation(String, String)}
+     */
+    public static StackOp operation(String operator) {
+        return new StackOp(Kind.OPERATION, 0, operator, null, null);
+    }
+
+    /**
+     * Reduce the top count values, as {@link Calculator#pushOperation(String, int, String)}
+     */
+    public static StackOp operation(String operator, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Operand count must be positive");
+        }
+        return new StackOp(Kind.OPERATION, count, operator, null, null);
+    }
+
+    public static StackOp compareAndPop(int expected) {
+        return new StackOp(Kind.COMPARE_AND_POP, expected, null, null, null);
+    }
+
+    /**
+     * Run one of two sequences depending on whether the stack is empty at this point
+     *
+     * @param then      the steps to run if the stack is empty
+     * @param otherwise the steps to run if it is not
+     */
+    public static StackOp ifEmpty(List<StackOp> then, List<StackOp> otherwise) {
+        return new StackOp(Kind.IF_EMPTY, 0, null, List.copyOf(then), List.copyOf(otherwise));
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the pushed value, the expected value, or the operand count (0 for the whole stack)
+     */
+    int getValue() {
+        return value;
+    }
+
+    String getOperator() {
+        return operator;
+    }
+
+    List<StackOp> getThen() {
+        return then;
+    }
+
+    List<StackOp> getOtherwise() {
+        return otherwise;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case PUSH:
+            case COMPARE_AND_POP:
+                return kind + "(" + value + ")";
+            case OPERATION:
+                return kind + "(" + operator + (value > 0 ? ", " + value : "") + ")";
+            case IF_EMPTY:
+                return kind + "(" + then + ", " + otherwise + ")";
+            default:
+                return kind.toString();
+        }
+    }
+}
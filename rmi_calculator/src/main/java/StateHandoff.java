@@ -0,0 +1,344 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the client stacks of a running server to a new one over a local socket.
+ * The old server first streams every stack while it keeps serving, then resends the
+ * clients that changed meanwhile in rounds until few are left, and waits for the new server
+ * to apply what it was sent. A resent client only carries the values above the lowest depth
+ * its stack shrank to since it was last sent, the new server cuts its copy down to that depth
+ * and pushes them, so a deep stack that keeps growing costs its new values and not its depth.
+ * Only the last round runs
+ * with the server held: new calls wait, the registry is handed over, and the waiting
+ * calls then fail with StateMovedException so that client handles retry on the new
+ * server. The pause therefore depends on the recent changes, not on the size of the state.
+ * The quotas, the rate limits clients used up, the subscriptions and the scheduled operations
+ * move during the last round too, so that none of them changes after it was copied.
+ */
+final class StateHandoff {
+    // Values per chunk, so large stacks are streamed instead of encoded in one piece
+    private static final int CHUNK_VALUES = 8192;
+    // Delta rounds stop once this few clients changed during a round
+    private static final int FINAL_DELTA_CLIENTS = 256;
+    private static final int MAX_DELTA_ROUNDS = 16;
+    // Longest wait for running calls when the server is held
+    private static final long HOLD_TIMEOUT_MILLIS = Long.getLong("calculator.handoffHoldMillis", 1000);
+    // Longest wait for the new server to bind once the registry has been released
+    private static final int BIND_TIMEOUT_MILLIS = 10_000;
+
+    private static final byte CLIENT = 1;
+    private static final byte REMOVED = 2;
+    private static final byte FINAL = 3;
+    private static final byte BOUND = 4;
+    private static final byte SYNC = 5;
+    // Quotas, rate limits, subscriptions and scheduled operations, sent while held
+    private static final byte SERVICES = 6;
+
+    /**
+     * A step of the registry takeover
+     */
+    interface Step {
+        void run() throws Exception;
+    }
+
+    private StateHandoff() {
+    }
+
+    /**
+     * Send the state of a calculator to the server connected on the socket
+     *
+     * @param calculator the calculator to hand off
+     * @param socket     the connection from the new server
+     * @param unbind     releases the registry so that the new server can create it
+     * @param rebind     restores the registry if the handoff fails after unbind
+     * @return how long the calculator was held, in milliseconds
+     * @throws Exception throws if the handoff failed, the calculator then serves on as before
+     */
+    static long send(CalculatorImplementation calculator, Socket socket, Step unbind, Step rebind) throws Exception {
+        // The held phase waits on single byte replies, which Nagle's algorithm would delay
+        socket.setTcpNoDelay(true);
+        calculator.trackChanges();
+        boolean held = false;
+        boolean unbound = false;
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // Copy everything while the calculator keeps serving
+            for (String clientID : calculator.clientIDs()) {
+                writeClient(out, calculator, clientID, false);
+            }
+            Set<String> changed = calculator.takeChanged();
+            for (int round = 0; round < MAX_DELTA_ROUNDS && changed.size() > FINAL_DELTA_CLIENTS; round++) {
+                for (String clientID : changed) {
+                    writeClient(out, calculator, clientID, true);
+                }
+                changed = calculator.takeChanged();
+            }
+            // Wait until the new server has applied everything, so the held phase only carries the last changes
+            out.writeByte(SYNC);
+            out.flush();
+            if (in.readByte() != SYNC) {
+                throw new IOException("New server failed to catch up");
+            }
+            changed.addAll(calculator.takeChanged());
+            for (String clientID : changed) {
+                writeClient(out, calculator, clientID, true);
+            }
+            changed = calculator.takeChanged();
+            out.flush();
+
+            // Hold the calculator for the last changes and the registry swap
+            long start = System.nanoTime();
+            held = true;
+            if (!calculator.hold(HOLD_TIMEOUT_MILLIS)) {
+                throw new IOException("Calls still running after " + HOLD_TIMEOUT_MILLIS + " ms");
+            }
+            changed.addAll(calculator.takeChanged());
+            for (String clientID : changed) {
+                writeClient(out, calculator, clientID, true);
+            }
+            writeServices(out, calculator);
+            unbound = true;
+            unbind.run();
+            out.writeByte(FINAL);
+            out.flush();
+            socket.setSoTimeout(BIND_TIMEOUT_MILLIS);
+            if (in.readByte() != BOUND) {
+                throw new IOException("New server failed to bind");
+            }
+            calculator.release(true);
+            held = false;
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            calculator.stopTrackingChanges();
+            if (held) {
+                try {
+                    if (unbound) {
+                        rebind.run();
+                    }
+                } finally {
+                    calculator.release(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receive the state of a running server and take over its registry
+     *
+     * @param calculator the calculator to fill, not yet bound
+     * @param socket     the connection to the old server
+     * @param bind       creates the registry and binds the calculator
+     * @throws Exception throws if the transfer or the bind failed
+     */
+    static void receive(CalculatorImplementation calculator, Socket socket, Step bind) throws Exception {
+        socket.setTcpNoDelay(true);
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        while (true) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case CLIENT: {
+                    String clientID = in.readUTF();
+                    int base = in.readInt();
+                    int count = in.readInt();
+                    if (calculator.restoreStart(clientID, base) != base) {
+                        throw new IOException("Handoff delta starts above the depth received for " + clientID);
+                    }
+                    // Pushed chunk by chunk, so a deep stack spills here as it did on the old server
+                    int received = 0;
+                    while (received < count) {
+                        PackedValues chunk = new PackedValues();
+                        chunk.readExternal(in);
+                        int[] array = chunk.toArray();
+                        if (array.length == 0 || array.length > count - received) {
+                            throw new IOException("Handoff chunk does not match the announced depth");
+                        }
+                        calculator.restoreValues(clientID, array);
+                        received += array.length;
+                    }
+                    Number[] wide = new Number[in.readInt()];
+                    for (int i = 0; i < wide.length; i++) {
+                        if (in.readBoolean()) {
+                            byte[] magnitude = new byte[in.readInt()];
+                            in.readFully(magnitude);
+                            wide[i] = new BigInteger(magnitude);
+                        } else {
+                            wide[i] = in.readLong();
+                        }
+                    }
+                    calculator.restoreWide(clientID, wide);
+                    break;
+                }
+                case REMOVED:
+                    calculator.restoreRemoved(in.readUTF());
+                    break;
+                case SERVICES:
+                    readServices(in, calculator);
+                    break;
+                case SYNC:
+                    out.writeByte(SYNC);
+                    out.flush();
+                    break;
+                case FINAL:
+                    bind.run();
+                    out.writeByte(BOUND);
+                    out.flush();
+                    return;
+                default:
+                    throw new IOException("Unexpected handoff record " + tag);
+            }
+        }
+    }
+
+    /**
+     * Write what the server keeps about its clients besides their stacks. Subscriptions are
+     * written one by one, a listener that cannot be serialized, such as one in the same
+     * process that was never exported, is dropped with a message instead of failing the handoff.
+     */
+    private static void writeServices(ObjectOutputStream out, CalculatorImplementation calculator) throws IOException {
+        out.writeByte(SERVICES);
+        out.writeInt(calculator.getMaxDepth());
+        out.writeLong(calculator.getMaxBytes());
+
+        Map<String, Long> debts = calculator.rateDebts();
+        out.writeInt(debts.size());
+        for (Map.Entry<String, Long> debt : debts.entrySet()) {
+            out.writeUTF(debt.getKey());
+            out.writeLong(debt.getValue());
+        }
+
+        List<String> subscribers = new ArrayList<>();
+        List<byte[]> listeners = new ArrayList<>();
+        for (Map.Entry<String, List<CalculatorListener>> subscription : calculator.subscriptions().entrySet()) {
+            for (CalculatorListener listener : subscription.getValue()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream listenerOut = new ObjectOutputStream(bytes)) {
+                    listenerOut.writeObject(listener);
+                } catch (IOException e) {
+                    System.err.println("Subscription of " + subscription.getKey() + " cannot move to the new server: " + e);
+                    continue;
+                }
+                subscribers.add(subscription.getKey());
+                listeners.add(bytes.toByteArray());
+            }
+        }
+        out.writeInt(listeners.size());
+        for (int i = 0; i < listeners.size(); i++) {
+            out.writeUTF(subscribers.get(i));
+            out.writeInt(listeners.get(i).length);
+            out.write(listeners.get(i));
+        }
+
+        List<CalculatorImplementation.ScheduledState> states = calculator.scheduledStates();
+        out.writeInt(states.size());
+        for (CalculatorImplementation.ScheduledState state : states) {
+            out.writeLong(state.id);
+            out.writeUTF(state.clientID);
+            out.writeLong(state.delayMillis);
+            out.writeLong(state.periodMillis);
+            out.writeObject(new ArrayList<>(state.ops));
+        }
+    }
+
+    /**
+     * Apply what {@link #writeServices} wrote
+     */
+    @SuppressWarnings("unchecked")
+    private static void readServices(ObjectInputStream in, CalculatorImplementation calculator) throws Exception {
+        calculator.setQuota(in.readInt(), in.readLong());
+
+        for (int i = in.readInt(); i > 0; i--) {
+            calculator.restoreRateDebt(in.readUTF(), in.readLong());
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            String clientID = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try (ObjectInputStream listenerIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                calculator.restoreSubscription((CalculatorListener) listenerIn.readObject(), clientID);
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.err.println("Subscription of " + clientID + " could not be taken over: " + e);
+            }
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            long id = in.readLong();
+            String clientID = in.readUTF();
+            long delayMillis = in.readLong();
+            long periodMillis = in.readLong();
+            List<StackOp> ops = (List<StackOp>) in.readObject();
+            calculator.restoreScheduled(new CalculatorImplementation.ScheduledState(id, ops, delayMillis, periodMillis, clientID));
+        }
+    }
+
+    /**
+     * Write the current values of a client, or its removal if it no longer exists.
+     * Spilled values are read from the spill file one chunk at a time, so only the values
+     * the client holds in memory are copied at once. A client changing while it is written
+     * may be written torn, but then its stack shrinks below the torn values, it is also
+     * tracked as changed and those values are written again later.
+     *
+     * @param delta true to write only the values above the depth the client kept unchanged
+     *              since it was last written, false to write all of them
+     */
+    private static void writeClient(ObjectOutputStream out, CalculatorImplementation calculator, String clientID,
+                                    boolean delta) throws IOException {
+        int unchanged = calculator.takeUnchanged(clientID);
+        int[] depths = {0, 0};
+        int[] memory = calculator.memorySnapshot(clientID, delta ? unchanged : 0, depths);
+        Number[] wide = calculator.wideSnapshot(clientID);
+        if (memory == null || wide == null) {
+            out.writeByte(REMOVED);
+            out.writeUTF(clientID);
+            return;
+        }
+        int base = depths[0];
+        int spilled = depths[1];
+        out.writeByte(CLIENT);
+        out.writeUTF(clientID);
+        out.writeInt(base);
+        out.writeInt(Math.max(spilled - base, 0) + memory.length);
+        int[] chunk = new int[Math.max(Math.min(CHUNK_VALUES, spilled - base), 0)];
+        for (int from = base; from < spilled; from += chunk.length) {
+            int length = Math.min(chunk.length, spilled - from);
+            // Zeros past what is still spilled keep the announced depth, the client is resent anyway
+            int copied = calculator.copySpilled(clientID, from, chunk);
+            Arrays.fill(chunk, Math.min(copied, length), chunk.length, 0);
+            new PackedValues(length == chunk.length ? chunk : Arrays.copyOf(chunk, length)).writeExternal(out);
+        }
+        for (int from = 0; from < memory.length; from += CHUNK_VALUES) {
+            int to = Math.min(memory.length, from + CHUNK_VALUES);
+            new PackedValues(Arrays.copyOfRange(memory, from, to)).writeExternal(out);
+        }
+        out.writeInt(wide.length);
+        for (Number val : wide) {
+            boolean big = val instanceof BigInteger;
+            out.writeBoolean(big);
+            if (big) {
+                byte[] magnitude = ((BigInteger) val).toByteArray();
+                out.writeInt(magnitude.length);
+                out.write(magnitude);
+            } else {
+                out.writeLong(val.longValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.rmi.NoSuchObjectException;
+
+/**
+ * Thrown when a call reaches a server that has handed its state to another one, before the
+ * call changed anything. Client handles look the calculator up again and retry the call on
+ * the new server, which other NoSuchObjectExceptions thrown by the server do not allow.
+ */
+public class StateMovedException extends NoSuchObjectException {
+    private static final long serialVersionUID = 1L;
+
+    public StateMovedException(String message) {
+        super(message);
+    }
+}
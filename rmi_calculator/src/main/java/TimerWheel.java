@@ -0,0 +1,316 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks at a future time or at a fixed rate on a hierarchical hashed timer wheel.
+ * Four wheels of 256 slots cover 256 ticks, 65536 ticks, 2^24 ticks and 2^32 ticks; a timer
+ * sits in the finest wheel whose range reaches its deadline and moves to a finer one when the
+ * coarser slot comes round, so inserting, cancelling and expiring a timer each cost O(1)
+ * however many are pending. A single driver thread owns the wheels: callers hand new timers
+ * and cancellations over through lock-free queues, and the thread parks while nothing is
+ * pending. Expired tasks run on the driver thread, which cannot expire anything else meanwhile,
+ * so tasks doing real work should only hand it to an executor, as the calculator's scheduled
+ * operations do.
+ */
+public class TimerWheel {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    // Longest delay the coarsest wheel can hold, in ticks
+    private static final long MAX_DELAY_TICKS = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final LongAdder pending = new LongAdder();
+    private final Thread driver;
+    private volatile boolean closed;
+    // Set before the driver parks with no timers, so that schedule knows to wake it
+    private volatile boolean idle;
+
+    // Owned by the driver thread: slot lists of every level, the last processed tick and the timer count
+    private final Timeout[] slots = new Timeout[LEVELS * SLOTS];
+    private long tick;
+    private long timers;
+
+    /**
+     * Start the driver thread
+     *
+     * @param tick the resolution of the wheel
+     * @param unit the unit of tick
+     * @param name the name of the driver thread
+     */
+    public TimerWheel(long tick, TimeUnit unit, String name) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        driver = new Thread(this::drive, name);
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    /**
+     * Run a task once after a delay
+     *
+     * @param task  the task to run
+     * @param delay the delay, rounded up to whole ticks
+     * @param unit  the unit of delay
+     * @return the handle to cancel the task with
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, delay, 0, unit);
+    }
+
+    /**
+     * Run a task after a delay and then every period, until it is cancelled
+     *
+     * @param task   the task to run
+     * @param delay  the delay before the first run
+     * @param period the interval between the start of two runs
+     * @param unit   the unit of delay and period
+     * @return the handle to cancel the task with
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long delay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        return add(task, delay, Math.max(1, unit.toNanos(period) / tickNanos), unit);
+    }
+
+    /**
+     * @return the number of timers waiting to run, recurring ones counting once
+     */
+    public long pending() {
+        return pending.sum();
+    }
+
+    /**
+     * Stop the driver thread, pending timers never run
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(driver);
+    }
+
+    private Timeout add(Runnable task, long delay, long periodTicks, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("Timer wheel is closed");
+        }
+        long delayTicks = (Math.max(0, unit.toNanos(delay)) + tickNanos - 1) / tickNanos;
+        if (delayTicks > MAX_DELAY_TICKS) {
+            throw new IllegalArgumentException("Delay exceeds " + MAX_DELAY_TICKS + " ticks");
+        }
+        Timeout timeout = new Timeout(this, task, currentTick() + delayTicks, periodTicks);
+        pending.increment();
+        added.offer(timeout);
+        if (idle) {
+            LockSupport.unpark(driver);
+        }
+        return timeout;
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    private void drive() {
+        tick = currentTick();
+        while (!closed) {
+            if (timers == 0 && added.isEmpty()) {
+                idle = true;
+                // Check again after announcing the park, schedule may have missed the flag
+                if (added.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                // Nothing was pending, so the ticks slept through need no processing
+                tick = Math.max(tick, currentTick() - 1);
+                continue;
+            }
+            long next = tick + 1;
+            long wait = startNanos + next * tickNanos - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            transfer();
+            process(next);
+        }
+    }
+
+    /**
+     * Move the timers handed over by callers into the wheels and unlink the cancelled ones
+     */
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot >= 0) {
+                unlink(timeout);
+                timers--;
+            }
+        }
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state == Timeout.PENDING) {
+                insert(timeout, tick + 1);
+                timers++;
+            }
+        }
+    }
+
+    /**
+     * Process one tick: bring down the coarser slots starting at it, then expire its slot
+     */
+    private void process(long now) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((now & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                Timeout timeout = detach(level * SLOTS + (int) ((now >>> (level * SLOT_BITS)) & MASK));
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    insert(timeout, now);
+                    timeout = next;
+                }
+            }
+        }
+        tick = now;
+        Timeout timeout = detach((int) (now & MASK));
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            expire(timeout);
+            timeout = next;
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        // A one-shot timer is marked run before it runs, so cancel reports false from then on
+        boolean recurring = timeout.period > 0;
+        if (recurring ? timeout.state != Timeout.PENDING
+                : !Timeout.STATE.compareAndSet(timeout, Timeout.PENDING, Timeout.EXPIRED)) {
+            timers--;
+            return;
+        }
+        if (!recurring) {
+            timers--;
+            pending.decrement();
+        }
+        try {
+            timeout.task.run();
+        } catch (Throwable e) {
+            // An Error must not end the driver, every other timer would silently stop with it
+            System.err.println("Timer task exception: " + e);
+        }
+        if (recurring) {
+            if (timeout.state == Timeout.PENDING) {
+                timeout.deadline += timeout.period;
+                insert(timeout, tick + 1);
+            } else {
+                timers--;
+            }
+        }
+    }
+
+    /**
+     * Put a timer in the finest wheel whose current rotation reaches its deadline: the
+     * deadline and the next tick differ only in the digits up to that wheel's own
+     *
+     * @param timeout the timer to insert
+     * @param next    the next tick to expire, timers due before it are moved to it
+     */
+    private void insert(Timeout timeout, long next) {
+        long deadline = Math.max(timeout.deadline, next);
+        int level = 0;
+        while (level < LEVELS - 1 && deadline >>> ((level + 1) * SLOT_BITS) != next >>> ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((deadline >>> (level * SLOT_BITS)) & MASK);
+        Timeout head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.slot = slot;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    /**
+     * Empty a slot, the returned timers stay chained through next
+     */
+    private Timeout detach(int slot) {
+        Timeout head = slots[slot];
+        slots[slot] = null;
+        for (Timeout timeout = head; timeout != null; timeout = timeout.next) {
+            timeout.slot = -1;
+        }
+        return head;
+    }
+
+    /**
+     * A scheduled task and its place in the wheels
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long period;
+        private volatile int state;
+        // Owned by the driver thread
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline, long period) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Stop the task from running again
+         *
+         * @return true if the task was pending, false if it had already run once or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.pending.decrement();
+            wheel.cancelled.offer(this);
+            return true;
+        }
+
+        /**
+         * @return true if the task was cancelled
+         */
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+    }
+}
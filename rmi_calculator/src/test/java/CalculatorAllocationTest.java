@@ -0,0 +1,197 @@
+import org.junit.jupiter.api.*;
+
+import java.lang.management.ManagementFactory;
+import java.rmi.server.UnicastRemoteObject;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the hot paths of the calculator allocate nothing once warmed up. Each operation
+ * runs on the calling thread, without RMI, and the bytes it allocates are read from the
+ * thread's allocation counter. The best of several rounds counts, so that an allocation made
+ * once by a warm-up step outside the operation, such as a counter cell or a compilation,
+ * does not fail the check. The budget in bytes per operation is
+ * -Dcalculator.allocationBudget, 0 by default.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class CalculatorAllocationTest {
+    private static final long BUDGET_BYTES = Long.getLong("calculator.allocationBudget", 0L);
+    private static final int[] DEPTHS = {0, 10, 1000, 100_000};
+    private static final String[] OPERATORS = {"min", "max", "lcm", "gcd"};
+    // Values inside and outside the Integer cache, so boxing anywhere shows up
+    private static final int[] VALUES = {5, -100, 1000, 1 << 20, Integer.MIN_VALUE};
+    private static final int WARMUP_OPS = 20_000;
+    private static final int MEASURED_OPS = 10_000;
+    private static final int ROUNDS = 5;
+
+    private static com.sun.management.ThreadMXBean threads;
+    private CalculatorImplementation calculator;
+
+    /**
+     * A calculator operation whose allocations are measured
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @BeforeAll
+    static void setUpCounter() {
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocation counting is not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @BeforeEach
+    void setUpCalculator() throws Exception {
+        // Inline engine and no lanes, the path every call takes by default
+        calculator = new CalculatorImplementation(new AdmissionController(), null, null);
+    }
+
+    @AfterEach
+    void tearDownCalculator() throws Exception {
+        calculator.close();
+        UnicastRemoteObject.unexportObject(calculator, true);
+    }
+
+    @Test
+    @DisplayName("Test that pushValue and pop allocate nothing at any depth")
+    @Order(1)
+    void testPushPop() throws Exception {
+        String clientId = "Client_testPushPop";
+        for (int depth : DEPTHS) {
+            fill(clientId, depth);
+            for (int value : VALUES) {
+                assertWithinBudget("pushValue+pop of " + value + " at depth " + depth, () -> {
+                    calculator.pushValue(value, clientId);
+                    calculator.pop(clientId);
+                });
+            }
+            assertEquals(depth, calculator.getClientDepth(clientId));
+            calculator.evictClient(clientId);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that isEmpty, size and peek allocate nothing at any depth")
+    @Order(2)
+    void testReads() throws Exception {
+        String clientId = "Client_testReads";
+        for (int depth : DEPTHS) {
+            fill(clientId, depth);
+            assertWithinBudget("isEmpty at depth " + depth, () -> calculator.isEmpty(clientId));
+            assertWithinBudget("size at depth " + depth, () -> calculator.size(clientId));
+            if (depth > 0) {
+                assertWithinBudget("peek at depth " + depth, () -> calculator.peek(clientId));
+            }
+            calculator.evictClient(clientId);
+        }
+        // Probing a client that does not exist creates nothing either
+        assertWithinBudget("isEmpty of an unknown client", () -> calculator.isEmpty("Client_testReads_unknown"));
+    }
+
+    @Test
+    @DisplayName("Test that every operator reduces the top of the stack without allocating")
+    @Order(3)
+    void testCountedOperations() throws Exception {
+        String clientId = "Client_testCountedOperations";
+        for (int depth : DEPTHS) {
+            fill(clientId, depth);
+            for (String operator : OPERATORS) {
+                for (int count : new int[]{2, 16}) {
+                    assertWithinBudget(operator + " of " + count + " values at depth " + depth, () -> {
+                        for (int i = 0; i < count; i++) {
+                            calculator.pushValue(1000 + i, clientId);
+                        }
+                        calculator.pushOperation(operator, count, clientId);
+                        calculator.pop(clientId);
+                    });
+                    assertWithinBudget("wide " + operator + " of " + count + " values at depth " + depth, () -> {
+                        // Small enough that the lcm fits in a long, past that it is a BigInteger by design
+                        for (int i = 0; i < count; i++) {
+                            calculator.pushValue(i % 12 + 1, clientId);
+                        }
+                        calculator.pushWideOperation(operator, count, clientId);
+                        calculator.popLong(clientId);
+                    });
+                }
+            }
+            assertEquals(depth, calculator.getClientDepth(clientId));
+            calculator.evictClient(clientId);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that every operator reduces the whole stack without allocating")
+    @Order(4)
+    void testWholeStackOperations() throws Exception {
+        String clientId = "Client_testWholeStackOperations";
+        for (int depth : new int[]{2, 16, 256}) {
+            for (String operator : OPERATORS) {
+                assertWithinBudget(operator + " of a whole stack of " + depth, () -> {
+                    for (int i = 0; i < depth; i++) {
+                        calculator.pushValue(i % 12 + 1, clientId);
+                    }
+                    calculator.pushOperation(operator, clientId);
+                    calculator.pop(clientId);
+                });
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test that calls on an idle stack still work after compaction and allocate nothing once inflated")
+    @Order(5)
+    void testAfterCompaction() throws Exception {
+        String clientId = "Client_testAfterCompaction";
+        for (int depth : DEPTHS) {
+            fill(clientId, depth);
+            // The first sweep clears the marks left by filling, the second compacts
+            calculator.compactIdleStacks();
+            assertEquals(depth > 0 ? 1 : 0, calculator.compactIdleStacks());
+            // The first push inflates the stack, then the usual path allocates nothing
+            calculator.pushValue(1000, clientId);
+            assertEquals(depth + 1, calculator.getClientDepth(clientId));
+            assertEquals(1000, calculator.pop(clientId));
+            assertWithinBudget("pushValue+pop after compaction at depth " + depth, () -> {
+                calculator.pushValue(1000, clientId);
+                calculator.pop(clientId);
+            });
+            for (int i = depth - 1; i >= 0; i--) {
+                assertEquals(i * 7 + 1, calculator.pop(clientId));
+            }
+            calculator.evictClient(clientId);
+        }
+    }
+
+    /**
+     * Push values until the client's stack has the given depth
+     */
+    private void fill(String clientId, int depth) throws Exception {
+        for (int i = 0; i < depth; i++) {
+            calculator.pushValue(i * 7 + 1, clientId);
+        }
+    }
+
+    /**
+     * Warm an operation up and fail if it then allocates more than the budget per call
+     *
+     * @param name      the operation, for the failure message
+     * @param operation the operation to measure
+     */
+    private static void assertWithinBudget(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            operation.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && best > BUDGET_BYTES * MEASURED_OPS; round++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < MEASURED_OPS; i++) {
+                operation.run();
+            }
+            best = Math.min(best, threads.getCurrentThreadAllocatedBytes() - before);
+        }
+        double perOperation = best / (double) MEASURED_OPS;
+        assertTrue(perOperation <= BUDGET_BYTES, String.format("%s allocates %.2f bytes per call, budget %d",
+                name, perOperation, BUDGET_BYTES));
+    }
+}
@@ -1,14 +1,42 @@
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,6 +50,8 @@ public class CalculatorTest {
         // Start the server
         new Thread(() -> {
             server = new CalculatorServer();
+            // Keep these tests on the RMI path even though the server runs in this JVM
+            server.setLocalAccess(false);
             server.run(1099);
         }).start();
 
@@ -33,10 +63,8 @@ public class CalculatorTest {
     @DisplayName("Test pushValue method for single client")
     @Order(1)
     void testPushValueSingleClient() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
         // Get calculator remote object
-        Calculator calculator = (Calculator) registry.lookup("Calculator");
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
         String clientId = "Client_testPushValueSingleClient";
         assertTrue(calculator.isEmpty(clientId));
 
@@ -56,8 +84,6 @@ public class CalculatorTest {
     @DisplayName("Test pushValue method for multiple clients")
     @Order(2)
     void testPushValueMultipleClients() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
         // Use thread pool to simulate multiple clients connecting concurrently
         ExecutorService executor = Executors.newFixedThreadPool(4);
         CountDownLatch latch = new CountDownLatch(4);
@@ -70,8 +96,8 @@ public class CalculatorTest {
             final int clientId = i;
             executor.submit(() -> {
                 try {
-                    // Each client gets its own remote object reference
-                    Calculator client = (Calculator) registry.lookup("Calculator");
+                    // Each client gets the shared cached handle
+                    Calculator client = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                     String clientIdentifier = "testPushValueMultipleClients " + clientId;
                     // Each client pushes its own value
                     client.pushValue(clientId, clientIdentifier);
@@ -102,9 +128,7 @@ public class CalculatorTest {
     @DisplayName("Test pushOperation method for single client")
     @Order(3)
     void testPushOperationSingleClient() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
-        Calculator calculator = (Calculator) registry.lookup("Calculator");
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
         String clientId = "Client_testPushOperationSingleClient";
         // Test max operation
         calculator.pushValue(10, clientId);
@@ -156,6 +180,27 @@ public class CalculatorTest {
 
         assertEquals(6, calculator.pop(clientId)); // GCD of 12, 18, and 24 is 6
         assertTrue(calculator.isEmpty(clientId));
+
+        // The lcm of 0 and any value is 0, including 0 itself, and negative values give a positive lcm
+        calculator.pushValue(0, clientId);
+        calculator.pushValue(0, clientId);
+        calculator.pushOperation("lcm", clientId);
+        assertEquals(0, calculator.pop(clientId));
+        calculator.pushValue(5, clientId);
+        calculator.pushValue(0, clientId);
+        calculator.pushOperation("lcm", clientId);
+        assertEquals(0, calculator.pop(clientId));
+        calculator.pushValue(-4, clientId);
+        calculator.pushValue(6, clientId);
+        calculator.pushOperation("lcm", clientId);
+        assertEquals(12, calculator.pop(clientId));
+
+        // An lcm beyond an int keeps wrapping around as it always has, the wide operations are exact
+        calculator.pushValue(65521, clientId);
+        calculator.pushValue(65519, clientId);
+        calculator.pushOperation("lcm", clientId);
+        assertEquals(Math.abs(65521 * 65519), calculator.pop(clientId));
+        assertTrue(calculator.isEmpty(clientId));
     }
 
 
@@ -163,8 +208,6 @@ public class CalculatorTest {
     @DisplayName("Test pushOperation method for multiple clients")
     @Order(4)
     void testPushOperationMultipleClients() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
         // Use thread pool to simulate multiple clients connecting concurrently
         ExecutorService executor = Executors.newFixedThreadPool(4);
         CountDownLatch latch = new CountDownLatch(4);
@@ -187,8 +230,8 @@ public class CalculatorTest {
             final int clientId = i + 1;
             executor.submit(() -> {
                 try {
-                    // Each client gets its own remote object reference
-                    Calculator client = (Calculator) registry.lookup("Calculator");
+                    // Each client gets the shared cached handle
+                    Calculator client = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                     // Set unique client ID to distinguish clients in server-side
                     String clientIdentifier = "PushOpClient-" + clientId;
                     Thread.sleep(100);
@@ -228,9 +271,7 @@ public class CalculatorTest {
     @DisplayName("Test pop method for single client")
     @Order(5)
     void testPopSingleClient() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
-        Calculator calculator = (Calculator) registry.lookup("Calculator");
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
         String clientId = "Client_testPopSingleClient";
         calculator.pushValue(10, clientId);
         calculator.pushValue(20, clientId);
@@ -244,8 +285,6 @@ public class CalculatorTest {
     @DisplayName("Test pop method for multiple clients")
     @Order(6)
     void testPopMultipleClients() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
         // Create individual threads for each client to ensure no thread reuse
         CountDownLatch latch = new CountDownLatch(4);
 
@@ -262,7 +301,7 @@ public class CalculatorTest {
         // Client 1 pushes values
         Thread client1Thread = new Thread(() -> {
             try {
-                Calculator client1 = (Calculator) registry.lookup("Calculator");
+                Calculator client1 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testPopMultipleClients-1";
                 Thread.sleep(100);
                 client1.pushValue(5, clientId);
@@ -280,7 +319,7 @@ public class CalculatorTest {
         // Client 2 operates concurrently
         Thread client2Thread = new Thread(() -> {
             try {
-                Calculator client2 = (Calculator) registry.lookup("Calculator");
+                Calculator client2 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testPopMultipleClients-2";
                 Thread.sleep(100);
                 client2.pushValue(10, clientId);
@@ -297,7 +336,7 @@ public class CalculatorTest {
         // Client 3 operates concurrently
         Thread client3Thread = new Thread(() -> {
             try {
-                Calculator client3 = (Calculator) registry.lookup("Calculator");
+                Calculator client3 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testPopMultipleClients-3";
                 Thread.sleep(100);
                 client3.pushValue(1, clientId);
@@ -316,7 +355,7 @@ public class CalculatorTest {
         // Client 4 pushes a new value
         Thread client4Thread = new Thread(() -> {
             try {
-                Calculator client4 = (Calculator) registry.lookup("Calculator");
+                Calculator client4 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testPopMultipleClients-4";
                 Thread.sleep(100);
                 client4.pushValue(20, clientId);
@@ -354,9 +393,7 @@ public class CalculatorTest {
     @DisplayName("Test delayPop method for single client")
     @Order(7)
     void testDelayPopSingleClient() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
-        Calculator calculator = (Calculator) registry.lookup("Calculator");
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
         String clientId = "Client_testDelayPopSingleClient";
         Thread.sleep(100);
         calculator.pushValue(42, clientId);
@@ -373,8 +410,6 @@ public class CalculatorTest {
     @DisplayName("Test delayPop method for multiple clients")
     @Order(8)
     void testDelayPopMultipleClients() throws Exception {
-        // Get registry
-        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1099);
         // Use thread pool to simulate multiple clients connecting concurrently
         ExecutorService executor = Executors.newFixedThreadPool(4);
         CountDownLatch latch = new CountDownLatch(4);
@@ -392,7 +427,7 @@ public class CalculatorTest {
         // Client 1 pushes value and delays pop
         executor.submit(() -> {
             try {
-                Calculator client1 = (Calculator) registry.lookup("Calculator");
+                Calculator client1 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testDelayPopMultipleClients-1";
                 Thread.sleep(100);
                 client1.pushValue(99, clientId);
@@ -409,7 +444,7 @@ public class CalculatorTest {
         // Client 2 operates concurrently
         executor.submit(() -> {
             try {
-                Calculator client2 = (Calculator) registry.lookup("Calculator");
+                Calculator client2 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testDelayPopMultipleClients-2";
                 Thread.sleep(100);
                 client2.pushValue(77, clientId);
@@ -426,7 +461,7 @@ public class CalculatorTest {
         // Client 3 operates concurrently
         executor.submit(() -> {
             try {
-                Calculator client3 = (Calculator) registry.lookup("Calculator");
+                Calculator client3 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testDelayPopMultipleClients-3";
                 Thread.sleep(100);
                 client3.pushValue(55, clientId);
@@ -443,7 +478,7 @@ public class CalculatorTest {
         // Client 4 operates concurrently
         executor.submit(() -> {
             try {
-                Calculator client4 = (Calculator) registry.lookup("Calculator");
+                Calculator client4 = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
                 String clientId = "testDelayPopMultipleClients-4";
                 Thread.sleep(100);
                 client4.pushValue(33, clientId);
@@ -472,4 +507,1302 @@ public class CalculatorTest {
         assertTrue(time4.get() >= 400, "Delay should be at least 400ms");
     }
 
-}
\ No newline at end of file
+    @Test
+    @DisplayName("Test pushOperation on the top values of the stack")
+    @Order(9)
+    void testPushOperationTopValues() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testPushOperationTopValues";
+        calculator.pushValue(7, clientId);
+        calculator.pushValue(3, clientId);
+        calculator.pushValue(12, clientId);
+        calculator.pushValue(18, clientId);
+
+        // Only the top two values take part in the operation
+        calculator.pushOperation("max", 2, clientId);
+        assertEquals(18, calculator.pop(clientId));
+        assertEquals(3, calculator.pop(clientId));
+
+        calculator.pushValue(12, clientId);
+        calculator.pushValue(18, clientId);
+        calculator.pushOperation("gcd", 2, clientId);
+        assertEquals(6, calculator.pop(clientId));
+        assertEquals(7, calculator.pop(clientId));
+        assertTrue(calculator.isEmpty(clientId));
+
+        // Asking for more values than the stack holds leaves it untouched
+        calculator.pushValue(5, clientId);
+        assertThrows(RemoteException.class, () -> calculator.pushOperation("min", 2, clientId));
+        assertEquals(5, calculator.pop(clientId));
+    }
+
+    @Test
+    @DisplayName("Test bulk pushValues and popValues over the compressed transport")
+    @Order(10)
+    void testBulkValuesCompressedTransport() throws Exception {
+        // Export a separate calculator that deflates every frame of 256 bytes or more
+        CalculatorImplementation implementation = new CalculatorImplementation(0,
+                new CompressingClientSocketFactory(256), new CompressingServerSocketFactory(256));
+        try {
+            Calculator calculator = (Calculator) RemoteObject.toStub(implementation);
+            String clientId = "Client_testBulkValuesCompressedTransport";
+            int[] values = new int[10000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = 1000 + i * 3 - (i % 7);
+            }
+            values[5000] = Integer.MIN_VALUE;
+            values[5001] = Integer.MAX_VALUE;
+
+            calculator.pushValues(new PackedValues(values), clientId);
+            // Small calls keep working on the same connection
+            calculator.pushValue(-1, clientId);
+            assertEquals(-1, calculator.pop(clientId));
+
+            int[] popped = calculator.popValues(values.length, clientId).toArray();
+            assertEquals(values.length, popped.length);
+            for (int i = 0; i < values.length; i++) {
+                assertEquals(values[values.length - 1 - i], popped[i]);
+            }
+            assertTrue(calculator.isEmpty(clientId));
+            assertThrows(RemoteException.class, () -> calculator.popValues(1, clientId));
+        } finally {
+            UnicastRemoteObject.unexportObject(implementation, true);
+        }
+
+        // Lengths sent by the peer are checked before anything is allocated
+        assertThrows(InvalidObjectException.class, () -> readPacked(Integer.MAX_VALUE));
+        assertThrows(InvalidObjectException.class, () -> readPacked(-1));
+        // A count of a million values in a five byte encoding
+        assertThrows(InvalidObjectException.class,
+                () -> readPacked(5, (byte) 0xC0, (byte) 0x84, (byte) 0x3D, (byte) 0, (byte) 0));
+        assertArrayEquals(new int[]{1, 0}, readPacked(3, (byte) 2, (byte) 2, (byte) 1));
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             CompressedSocket socket = new CompressedSocket("127.0.0.1", listener.getLocalPort(), 256);
+             Socket peer = listener.accept()) {
+            // A deflated frame claiming 2 GB of compressed data for 100 raw bytes
+            DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+            out.writeInt(0xFFFFFFFF);
+            out.writeInt(100);
+            out.flush();
+            assertThrows(IOException.class, () -> socket.getInputStream().read());
+        }
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             CompressedSocket socket = new CompressedSocket("127.0.0.1", listener.getLocalPort(), 256);
+             Socket peer = listener.accept()) {
+            // An empty plain frame ahead of a real one
+            DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+            out.writeInt(0);
+            out.writeInt(1);
+            out.write(42);
+            out.flush();
+            assertThrows(IOException.class, () -> socket.getInputStream().read());
+        }
+        // The writer applies the reader's bound too, alternating extremes take five bytes a value
+        int[] extremes = new int[PackedValues.MAX_ENCODED_BYTES / 5 + 1];
+        for (int i = 1; i < extremes.length; i += 2) {
+            extremes[i] = Integer.MIN_VALUE;
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(OutputStream.nullOutputStream())) {
+            assertThrows(InvalidObjectException.class, () -> new PackedValues(extremes).writeExternal(out));
+        }
+    }
+
+    /**
+     * Copy a client's values bottom first the way a handoff reads them, spilled ones included
+     */
+    private static int[] copyValues(CalculatorImplementation calculator, String clientID) {
+        int[] depths = {0, 0};
+        int[] memory = calculator.memorySnapshot(clientID, 0, depths);
+        int[] values = new int[depths[1] + memory.length];
+        assertEquals(depths[1], calculator.copySpilled(clientID, 0, values));
+        System.arraycopy(memory, 0, values, depths[1], memory.length);
+        return values;
+    }
+
+    /**
+     * Decode packed values from a length and the bytes following it on the wire
+     */
+    private static int[] readPacked(int length, byte... bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeInt(length);
+            out.write(bytes);
+        }
+        PackedValues values = new PackedValues();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            values.readExternal(in);
+        }
+        return values.toArray();
+    }
+
+    @Test
+    @DisplayName("Test client factory caches the calculator handle")
+    @Order(11)
+    void testClientFactoryCachesHandle() throws Exception {
+        Calculator first = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        Calculator second = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        assertSame(first, second);
+
+        String clientId = "Client_testClientFactoryCachesHandle";
+        second.pushValue(8, clientId);
+        assertEquals(8, first.pop(clientId));
+
+        CalculatorClientFactory.Stats stats = CalculatorClientFactory.getStats("127.0.0.1", 1099, "Calculator");
+        assertNotNull(stats);
+        assertTrue(stats.isHealthy());
+        assertTrue(stats.getCacheHits() > 0);
+    }
+
+    @Test
+    @DisplayName("Test admission control rejects clients over their limits")
+    @Order(12)
+    void testAdmissionControl() throws Exception {
+        // One call per minute with a burst of two, at most one delayed pop at a time
+        CalculatorImplementation implementation =
+                new CalculatorImplementation(new AdmissionController(1.0 / 60, 2, 0, 1));
+        try {
+            String clientId = "Client_testAdmissionControl";
+            implementation.pushValue(1, clientId);
+            implementation.pushValue(2, clientId);
+            assertThrows(AdmissionRejectedException.class, () -> implementation.pushValue(3, clientId));
+
+            // Other clients keep their own budget
+            String otherId = "Client_testAdmissionControl-other";
+            implementation.pushValue(4, otherId);
+            CountDownLatch started = new CountDownLatch(1);
+            Thread waiting = new Thread(() -> {
+                try {
+                    started.countDown();
+                    implementation.delayPop(1000, otherId);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            waiting.start();
+            started.await();
+            Thread.sleep(200);
+            assertThrows(AdmissionRejectedException.class,
+                    () -> implementation.delayPop(10, "Client_testAdmissionControl-third"));
+            waiting.join();
+
+            // Buckets of clients idle past their next arrival time are dropped, recent ones stay
+            AdmissionController controller = new AdmissionController(10, 1, 0, 0);
+            controller.enter(clientId);
+            controller.exit();
+            Thread.sleep(300);
+            controller.enter(otherId);
+            controller.exit();
+            assertEquals(1, controller.pruneBuckets(TimeUnit.MILLISECONDS.toNanos(100)));
+            assertEquals(0, controller.pruneBuckets(TimeUnit.MILLISECONDS.toNanos(100)));
+            assertThrows(AdmissionRejectedException.class, () -> controller.enter(otherId));
+            controller.enter(clientId);
+            controller.exit();
+        } finally {
+            UnicastRemoteObject.unexportObject(implementation, true);
+            implementation.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Test per-client quotas and usage reporting")
+    @Order(13)
+    void testClientQuotas() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        CalculatorAdmin admin = CalculatorClientFactory.getStub("127.0.0.1", 1099, "CalculatorAdmin", CalculatorAdmin.class);
+        String clientId = "Client_testClientQuotas";
+        admin.setQuota(3, 0);
+        try {
+            calculator.pushValue(1, clientId);
+            calculator.pushValue(1000, clientId);
+            calculator.pushValue(2, clientId);
+            assertThrows(QuotaExceededException.class, () -> calculator.pushValue(3, clientId));
+            assertThrows(QuotaExceededException.class,
+                    () -> calculator.pushValues(new PackedValues(new int[]{4, 5}), clientId));
+
+            ClientUsage usage = admin.getClientUsage(clientId);
+            assertEquals(3, usage.getDepth());
+            assertEquals(3, usage.getMaxDepth());
+            assertEquals(3 * ClientStack.VALUE_BYTES, usage.getBytes());
+
+            // Accounting follows pops and operations
+            calculator.pushOperation("max", 2, clientId);
+            assertEquals(1000, calculator.pop(clientId));
+            assertEquals(ClientStack.VALUE_BYTES, admin.getClientUsage(clientId).getBytes());
+            assertEquals(1, calculator.pop(clientId));
+            assertEquals(0, admin.getClientUsage(clientId).getBytes());
+
+            // Unknown clients report empty usage
+            assertEquals(0, admin.getClientUsage("Client_testClientQuotas-unknown").getDepth());
+        } finally {
+            admin.setQuota(0, 0);
+        }
+    }
+
+    @Test
+    @DisplayName("Test subscribers are notified when the stack changes")
+    @Order(14)
+    void testSubscribeNotifications() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testSubscribeNotifications";
+        ConcurrentLinkedQueue<Integer> depths = new ConcurrentLinkedQueue<>();
+        CountDownLatch nonEmpty = new CountDownLatch(1);
+        CountDownLatch emptied = new CountDownLatch(1);
+        CalculatorListener listener = new CalculatorListener() {
+            @Override
+            public void stackChanged(String clientID, int depth) {
+                depths.add(depth);
+                if (depth > 0) {
+                    nonEmpty.countDown();
+                } else {
+                    emptied.countDown();
+                }
+            }
+        };
+        CalculatorListener stub = (CalculatorListener) UnicastRemoteObject.exportObject(listener, 0);
+        try {
+            calculator.subscribe(stub, clientId);
+            calculator.pushValue(1, clientId);
+            calculator.pushValue(2, clientId);
+            assertTrue(nonEmpty.await(5, TimeUnit.SECONDS));
+
+            calculator.pop(clientId);
+            calculator.pop(clientId);
+            assertTrue(emptied.await(5, TimeUnit.SECONDS));
+            // Changes may be coalesced, but never produce more notifications than changes
+            assertTrue(depths.size() <= 4);
+
+            calculator.unsubscribe(stub, clientId);
+        } finally {
+            UnicastRemoteObject.unexportObject(listener, true);
+        }
+    }
+
+    @Test
+    @DisplayName("Test awaitPop returns as soon as a value is pushed")
+    @Order(15)
+    void testAwaitPop() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testAwaitPop";
+
+        // A value already on the stack is returned immediately
+        calculator.pushValue(3, clientId);
+        assertEquals(3, calculator.awaitPop(1000, clientId));
+
+        // A waiting consumer gets the value pushed by a producer
+        AtomicInteger result = new AtomicInteger(-1);
+        AtomicLong elapsed = new AtomicLong();
+        Thread consumer = new Thread(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                result.set(calculator.awaitPop(10000, clientId));
+                elapsed.set(System.currentTimeMillis() - startTime);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        consumer.start();
+        Thread.sleep(300);
+        calculator.pushValue(42, clientId);
+        consumer.join();
+        assertEquals(42, result.get());
+        assertTrue(elapsed.get() < 5000, "awaitPop should return well before its timeout");
+        assertTrue(calculator.isEmpty(clientId));
+
+        // Without a producer the wait ends with an exception after the timeout
+        long startTime = System.currentTimeMillis();
+        assertThrows(RemoteException.class, () -> calculator.awaitPop(200, clientId));
+        assertTrue(System.currentTimeMillis() - startTime >= 200, "Wait should last at least 200ms");
+    }
+
+    @Test
+    @DisplayName("Test atomic conditional and multi-step operations")
+    @Order(16)
+    void testAtomicOperations() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testAtomicOperations";
+
+        calculator.pushValue(1, clientId);
+        calculator.pushValue(2, clientId);
+        assertEquals(2, calculator.peek(clientId));
+        calculator.swap(clientId);
+        assertEquals(1, calculator.peek(clientId));
+        calculator.dup(clientId);
+        assertFalse(calculator.compareAndPop(5, clientId));
+        assertTrue(calculator.compareAndPop(1, clientId));
+        assertTrue(calculator.compareAndPop(1, clientId));
+        assertEquals(2, calculator.pop(clientId));
+
+        // If empty then push, else pop
+        List<StackOp> pushOrPop = List.of(StackOp.ifEmpty(
+                List.of(StackOp.push(7)),
+                List.of(StackOp.pop())));
+        assertArrayEquals(new int[0], calculator.atomically(pushOrPop, clientId));
+        assertArrayEquals(new int[]{7}, calculator.atomically(pushOrPop, clientId));
+        assertTrue(calculator.isEmpty(clientId));
+
+        // Pop two, push the larger, and read it back
+        calculator.pushValue(4, clientId);
+        calculator.pushValue(9, clientId);
+        calculator.pushValue(3, clientId);
+        assertArrayEquals(new int[]{9},
+                calculator.atomically(List.of(StackOp.operation("max", 2), StackOp.peek()), clientId));
+
+        // A failing step undoes the whole sequence
+        assertThrows(RemoteException.class, () -> calculator.atomically(List.of(
+                StackOp.pop(), StackOp.operation("min"), StackOp.pop(), StackOp.pop()), clientId));
+        assertEquals(9, calculator.pop(clientId));
+        assertEquals(4, calculator.pop(clientId));
+        assertTrue(calculator.isEmpty(clientId));
+    }
+
+    @Test
+    @DisplayName("Test co-located callers get the calculator in-process")
+    @Order(17)
+    void testInProcessHandle() throws Exception {
+        Registry registry = LocateRegistry.createRegistry(1098);
+        Set<Thread> callers = ConcurrentHashMap.newKeySet();
+        CalculatorImplementation implementation = new CalculatorImplementation() {
+            @Override
+            public boolean isEmpty(String clientID) throws RemoteException {
+                callers.add(Thread.currentThread());
+                return super.isEmpty(clientID);
+            }
+        };
+        CalculatorImplementation successor = new CalculatorImplementation();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CalculatorClientFactory.registerLocal(implementation);
+            CalculatorClientFactory.registerLocal(successor);
+            registry.bind("Calculator", implementation);
+
+            // Calls run on the calling thread, not on an RMI thread
+            Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1098);
+            String clientId = "Client_testInProcessHandle";
+            assertTrue(calculator.isEmpty(clientId));
+            assertEquals(Set.of(Thread.currentThread()), callers);
+
+            // Same semantics and exceptions as the remote path
+            calculator.pushValue(12, clientId);
+            calculator.pushValue(18, clientId);
+            calculator.pushOperation("gcd", clientId);
+            assertEquals(6, calculator.pop(clientId));
+            assertThrows(RemoteException.class, () -> calculator.pop(clientId));
+
+            // After a handoff the handle follows the state to the new object. A parked awaitPop
+            // fails without a retry, it already waited, while calls refused on arrival are retried
+            Future<Integer> waiting = executor.submit(() -> calculator.awaitPop(10_000, clientId));
+            Thread.sleep(200);
+            assertTrue(implementation.hold(1000));
+            registry.rebind("Calculator", successor);
+            implementation.release(true);
+            ExecutionException failed = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertEquals(NoSuchObjectException.class, failed.getCause().getClass());
+            assertEquals(0, successor.getStats().getTotalCalls());
+            calculator.pushValue(5, clientId);
+            assertEquals(1, successor.getClientDepth(clientId));
+            assertEquals(1, successor.getStats().getTotalCalls());
+            assertEquals(5, calculator.pop(clientId));
+        } finally {
+            executor.shutdownNow();
+            CalculatorClientFactory.unregisterLocal(implementation);
+            CalculatorClientFactory.unregisterLocal(successor);
+            UnicastRemoteObject.unexportObject(implementation, true);
+            UnicastRemoteObject.unexportObject(successor, true);
+            UnicastRemoteObject.unexportObject(registry, true);
+        }
+    }
+
+    @Test
+    @DisplayName("Test the busiest clients are reported through CalculatorAdmin")
+    @Order(18)
+    void testHotClients() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        CalculatorAdmin admin = CalculatorClientFactory.getStub("127.0.0.1", 1099, "CalculatorAdmin", CalculatorAdmin.class);
+        String hotId = "Client_testHotClients-hot";
+        String quietId = "Client_testHotClients-quiet";
+        for (int i = 0; i < 500; i++) {
+            calculator.isEmpty(hotId);
+        }
+        calculator.pushValues(new PackedValues(new int[2000]), hotId);
+        calculator.pushValue(1, quietId);
+
+        List<HotClient> byCalls = admin.getTopClientsByCalls(50, 60);
+        List<String> callIds = byCalls.stream().map(HotClient::getClientID).toList();
+        assertTrue(callIds.contains(hotId));
+        assertTrue(!callIds.contains(quietId) || callIds.indexOf(quietId) > callIds.indexOf(hotId));
+        // Estimates never undercount
+        assertTrue(byCalls.get(callIds.indexOf(hotId)).getCount() >= 501);
+
+        List<HotClient> byValues = admin.getTopClientsByValues(50, 60);
+        List<String> valueIds = byValues.stream().map(HotClient::getClientID).toList();
+        assertTrue(valueIds.contains(hotId));
+        assertTrue(byValues.get(valueIds.indexOf(hotId)).getCount() >= 2000);
+        // Depths are levels, popping does not lower the peak within the window
+        calculator.popValues(2000, hotId);
+        calculator.pop(quietId);
+        HotClient deepest = admin.getTopClientsByValues(50, 60).stream()
+                .filter(client -> client.getClientID().equals(hotId)).findFirst().orElseThrow();
+        assertTrue(deepest.getCount() >= 2000);
+        assertEquals(0, deepest.getPerSecond());
+
+        // A full candidate set makes room for a heavier client instead of turning it away
+        HotClientTracker tracker = new HotClientTracker(64, 2, 60_000, 2, false);
+        for (int i = 0; i < 4; i++) {
+            tracker.record("light-" + i, 1);
+        }
+        tracker.record("heavy", 100);
+        assertEquals("heavy", tracker.top(1, 60).get(0).getClientID());
+        HotClientTracker peaks = new HotClientTracker(64, 2, 60_000, 2, true);
+        peaks.record("deep", 5);
+        peaks.record("deep", 3);
+        assertEquals(5, peaks.top(1, 60).get(0).getCount());
+    }
+
+    @Test
+    @DisplayName("Test stats, client inspection, eviction and drain through CalculatorAdmin")
+    @Order(19)
+    void testAdminOperations() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        CalculatorAdmin admin = CalculatorClientFactory.getStub("127.0.0.1", 1099, "CalculatorAdmin", CalculatorAdmin.class);
+        String clientId = "Client_testAdminOperations";
+
+        CalculatorStats before = admin.getStats();
+        calculator.pushValues(new PackedValues(new int[]{1, 2, 3}), clientId);
+        CalculatorStats after = admin.getStats();
+        assertEquals(before.getClients() + 1, after.getClients());
+        assertEquals(before.getTotalValues() + 3, after.getTotalValues());
+        assertTrue(after.getTotalCalls() > before.getTotalCalls());
+        assertEquals(3, admin.getClientDepth(clientId));
+        assertEquals(0, admin.getClientDepth("Client_testAdminOperations-unknown"));
+
+        // Eviction drops the client and its values from the counters
+        assertEquals(3, admin.evictClient(clientId));
+        assertEquals(0, admin.getClientDepth(clientId));
+        CalculatorStats evicted = admin.getStats();
+        assertEquals(before.getClients(), evicted.getClients());
+        assertEquals(before.getTotalValues(), evicted.getTotalValues());
+
+        // Eviction also drops the client's scheduled operations, subscriptions and rate limit
+        CalculatorImplementation local = new CalculatorImplementation(new AdmissionController(1, 1, 0, 0), null, null);
+        try {
+            ConcurrentLinkedQueue<Integer> depths = new ConcurrentLinkedQueue<>();
+            CountDownLatch dropped = new CountDownLatch(1);
+            CalculatorListener listener = (clientID, depth) -> {
+                depths.add(depth);
+                if (depth == 0) {
+                    dropped.countDown();
+                }
+            };
+            local.subscribe(listener, clientId);
+            assertThrows(AdmissionRejectedException.class, () -> local.pushValue(1, clientId));
+            local.evictClient(clientId);
+            assertTrue(dropped.await(5, TimeUnit.SECONDS));
+            // A fresh bucket admits the next call at once
+            local.schedule(List.of(StackOp.push(1)), 60_000, clientId);
+            assertEquals(1, local.getScheduledCount());
+            local.evictClient(clientId);
+            assertEquals(0, local.getScheduledCount());
+            local.pushValue(1, clientId);
+            Thread.sleep(200);
+            assertEquals(List.of(0), new ArrayList<>(depths));
+        } finally {
+            local.close();
+            UnicastRemoteObject.unexportObject(local, true);
+        }
+
+        // Drain waits for a call in flight and rejects new ones until resumed
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> pending = executor.submit(() -> calculator.awaitPop(5000, clientId));
+            while (admin.getStats().getInFlight() == 0) {
+                Thread.sleep(10);
+            }
+            assertFalse(admin.drain(100));
+            assertTrue(admin.getStats().isDraining());
+            assertThrows(AdmissionRejectedException.class, () -> calculator.pushValue(7, clientId));
+
+            admin.resume();
+            calculator.pushValue(7, clientId);
+            assertEquals(7, pending.get(5, TimeUnit.SECONDS));
+            assertTrue(admin.drain(1000));
+        } finally {
+            admin.resume();
+            executor.shutdownNow();
+        }
+        assertTrue(calculator.isEmpty(clientId));
+    }
+
+    @Test
+    @DisplayName("Test a new server takes over the state and the registry of a running one")
+    @Order(20)
+    void testServerHandoff() throws Exception {
+        CalculatorServer oldServer = new CalculatorServer();
+        oldServer.setLocalAccess(false);
+        oldServer.setHandoffPort(1096);
+        oldServer.run(1097);
+
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1097);
+        Remote oldStub = LocateRegistry.getRegistry("127.0.0.1", 1097).lookup("Calculator");
+        int[] bulk = new int[50_000];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = i;
+        }
+        calculator.pushValues(new PackedValues(bulk), "Client_testServerHandoff-bulk");
+        calculator.pushValue(42, "Client_testServerHandoff-single");
+
+        // Quotas, subscriptions and scheduled operations move with the stacks
+        CalculatorAdmin oldAdmin = CalculatorClientFactory.getStub("127.0.0.1", 1097, "CalculatorAdmin", CalculatorAdmin.class);
+        oldAdmin.setQuota(1_000_000, 0);
+        String watchedId = "Client_testServerHandoff-watched";
+        CountDownLatch notified = new CountDownLatch(1);
+        CalculatorListener listener = (clientID, depth) -> {
+            if (depth == 2) {
+                notified.countDown();
+            }
+        };
+        CalculatorListener listenerStub = (CalculatorListener) UnicastRemoteObject.exportObject(listener, 0);
+        calculator.subscribe(listenerStub, watchedId);
+        String timedId = "Client_testServerHandoff-timed";
+        long timedRun = calculator.scheduleAtFixedRate(List.of(StackOp.push(7)), 20, 20, timedId);
+
+        // Keep pushing through the handoff, every acknowledged push must survive it
+        String liveId = "Client_testServerHandoff-live";
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger pushed = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> pusher = executor.submit(() -> {
+            while (running.get()) {
+                calculator.pushValue(1, liveId);
+                pushed.incrementAndGet();
+            }
+            return null;
+        });
+        try {
+            while (pushed.get() < 100) {
+                Thread.sleep(1);
+            }
+            CalculatorServer newServer = new CalculatorServer();
+            newServer.setLocalAccess(false);
+            newServer.setHandoffFrom(1096);
+            newServer.run(1097);
+            int handedOff = pushed.get();
+            while (pushed.get() < handedOff + 100 && !pusher.isDone()) {
+                Thread.sleep(1);
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        pusher.get(10, TimeUnit.SECONDS);
+
+        // The same handle now reaches the new server, which holds every value
+        assertNotEquals(oldStub, LocateRegistry.getRegistry("127.0.0.1", 1097).lookup("Calculator"));
+        CalculatorAdmin admin = CalculatorClientFactory.getStub("127.0.0.1", 1097, "CalculatorAdmin", CalculatorAdmin.class);
+        assertEquals(pushed.get(), admin.getClientDepth(liveId));
+        assertEquals(42, calculator.pop("Client_testServerHandoff-single"));
+        int[] popped = calculator.popValues(bulk.length, "Client_testServerHandoff-bulk").toArray();
+        // popValues returns the top of the stack first
+        for (int i = 0; i < bulk.length; i++) {
+            assertEquals(bulk[bulk.length - 1 - i], popped[i]);
+        }
+
+        assertEquals(1_000_000, admin.getClientUsage(watchedId).getMaxDepth());
+        try {
+            calculator.pushValue(1, watchedId);
+            calculator.pushValue(2, watchedId);
+            assertTrue(notified.await(5, TimeUnit.SECONDS));
+        } finally {
+            UnicastRemoteObject.unexportObject(listener, true);
+        }
+        int timedDepth = admin.getClientDepth(timedId);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (admin.getClientDepth(timedId) <= timedDepth && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(admin.getClientDepth(timedId) > timedDepth);
+        assertTrue(calculator.cancelScheduled(timedRun, timedId));
+
+        // Rate limits move as the time each client has to wait, the clocks of two processes differ
+        AdmissionController from = new AdmissionController(1, 1, 0, 0);
+        from.enter(timedId);
+        from.exit();
+        AdmissionController to = new AdmissionController(1, 1, 0, 0);
+        to.restoreDebt(timedId, from.debts().get(timedId));
+        assertThrows(AdmissionRejectedException.class, () -> to.enter(timedId));
+    }
+
+    @Test
+    @DisplayName("Test extra endpoints share one calculator and clients are spread across them")
+    @Order(21)
+    void testEndpointSharding() throws Exception {
+        CalculatorServer shardedServer = new CalculatorServer();
+        shardedServer.setLocalAccess(false);
+        shardedServer.setEndpoints(3);
+        shardedServer.run(1095);
+
+        Registry registry = LocateRegistry.getRegistry("127.0.0.1", 1095);
+        List<String> names = List.of(registry.list());
+        assertTrue(names.containsAll(List.of("Calculator", "Calculator-0", "Calculator-1", "Calculator-2")));
+
+        // Each endpoint listens on its own port but sees the same stacks
+        Calculator first = CalculatorClientFactory.getStub("127.0.0.1", 1095, "Calculator-0", Calculator.class);
+        Calculator second = CalculatorClientFactory.getStub("127.0.0.1", 1095, "Calculator-1", Calculator.class);
+        assertNotEquals(registry.lookup("Calculator-0").toString().replaceAll(".*port:(\\d+).*", "$1"),
+                registry.lookup("Calculator-1").toString().replaceAll(".*port:(\\d+).*", "$1"));
+        String clientId = "Client_testEndpointSharding";
+        first.pushValue(8, clientId);
+        second.pushValue(12, clientId);
+        first.pushOperation("gcd", clientId);
+
+        // The default handle spreads its clients over every endpoint, each client sticking to one
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1095);
+        assertEquals(3, CalculatorClientFactory.getStats("127.0.0.1", 1095, "Calculator").getEndpoints());
+        assertEquals(4, calculator.pop(clientId));
+        assertThrows(RemoteException.class, () -> second.pop(clientId));
+        for (int i = 0; i < 10; i++) {
+            calculator.pushValue(i, clientId + "-" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, first.pop(clientId + "-" + i));
+        }
+    }
+
+    @Test
+    @DisplayName("Test wide operations return exact results through popLong and popBig")
+    @Order(22)
+    void testWideOperations() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testWideOperations";
+
+        // Overflows int but fits in a long
+        calculator.pushValue(65521, clientId);
+        calculator.pushValue(65519, clientId);
+        calculator.pushValue(65497, clientId);
+        calculator.pushWideOperation("lcm", clientId);
+        assertEquals(65521L * 65519L * 65497L, calculator.popLong(clientId));
+        assertTrue(calculator.isEmpty(clientId));
+
+        // Overflows a long, so only popBig can read it
+        calculator.pushValue(1, clientId);
+        calculator.pushValue(Integer.MAX_VALUE, clientId);
+        calculator.pushValue(2147483629, clientId);
+        calculator.pushValue(2147483587, clientId);
+        calculator.pushWideOperation("lcm", 3, clientId);
+        assertThrows(RemoteException.class, () -> calculator.popLong(clientId));
+        assertEquals(BigInteger.valueOf(Integer.MAX_VALUE).multiply(BigInteger.valueOf(2147483629))
+                .multiply(BigInteger.valueOf(2147483587)), calculator.popBig(clientId));
+
+        // Values below the reduced ones are untouched, and small results are read either way
+        assertEquals(1, calculator.pop(clientId));
+        calculator.pushValue(-12, clientId);
+        calculator.pushValue(18, clientId);
+        calculator.pushWideOperation("gcd", clientId);
+        calculator.pushValue(Integer.MIN_VALUE, clientId);
+        calculator.pushValue(5, clientId);
+        calculator.pushWideOperation("min", 2, clientId);
+        assertEquals(Integer.MIN_VALUE, calculator.popLong(clientId));
+        assertEquals(BigInteger.valueOf(6), calculator.popBig(clientId));
+        assertThrows(RemoteException.class, () -> calculator.popBig(clientId));
+        assertTrue(calculator.isEmpty(clientId));
+    }
+
+    @Test
+    @DisplayName("Test the partitioned engine serves every operation from its partition threads")
+    @Order(23)
+    void testPartitionedEngine() throws Exception {
+        PartitionedEngine engine = new PartitionedEngine(3);
+        CalculatorImplementation calculator = new CalculatorImplementation(new AdmissionController(), engine);
+        try {
+            // Many callers on few clients, each client's values still arrive whole
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<?>> pushes = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String clientId = "Client_testPartitionedEngine_" + (t % 4);
+                pushes.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        calculator.pushValue(i, clientId);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> push : pushes) {
+                push.get(10, TimeUnit.SECONDS);
+            }
+            for (int c = 0; c < 4; c++) {
+                assertEquals(2000, calculator.getClientDepth("Client_testPartitionedEngine_" + c));
+            }
+
+            // Results and failures come back to the caller
+            String clientId = "Client_testPartitionedEngine";
+            calculator.pushValue(12, clientId);
+            calculator.pushValue(18, clientId);
+            calculator.swap(clientId);
+            assertEquals(12, calculator.peek(clientId));
+            calculator.pushOperation("gcd", clientId);
+            assertEquals(6, calculator.pop(clientId));
+            assertThrows(RemoteException.class, () -> calculator.pop(clientId));
+
+            // A push from a partition thread still wakes a caller blocked in awaitPop
+            Future<Integer> waiting = executor.submit(() -> calculator.awaitPop(5000, clientId));
+            Thread.sleep(100);
+            calculator.pushValue(7, clientId);
+            assertEquals(7, waiting.get(5, TimeUnit.SECONDS));
+            // Both callers of this client pushed 999 last
+            assertEquals(999, calculator.delayPop(1, "Client_testPartitionedEngine_0"));
+            executor.shutdown();
+        } finally {
+            UnicastRemoteObject.unexportObject(calculator, true);
+            calculator.close();
+        }
+        assertThrows(RemoteException.class, () -> calculator.pushValue(1, "Client_testPartitionedEngine"));
+    }
+
+    @Test
+    @DisplayName("Test the combining engine under many threads on one client")
+    @Order(24)
+    void testCombiningEngine() throws Exception {
+        CalculatorImplementation calculator = new CalculatorImplementation(new AdmissionController(), new CombiningEngine());
+        String clientId = "Client_testCombiningEngine";
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            // Every push lands exactly once, whichever thread combined it
+            List<Future<?>> pushes = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                pushes.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        calculator.pushValue(1, clientId);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> push : pushes) {
+                push.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(8000, calculator.getClientDepth(clientId));
+
+            // Concurrent pops and reductions each see a consistent stack
+            List<Future<Integer>> pops = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                pops.add(executor.submit(() -> {
+                    int popped = 0;
+                    for (int i = 0; i < 250; i++) {
+                        calculator.pushOperation("max", 2, clientId);
+                        popped += calculator.pop(clientId);
+                    }
+                    return popped;
+                }));
+            }
+            int popped = 0;
+            for (Future<Integer> pop : pops) {
+                popped += pop.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(4000, popped);
+            assertTrue(calculator.isEmpty(clientId));
+            assertThrows(RemoteException.class, () -> calculator.pop(clientId));
+
+            // An evicted client starts over on a new publication record
+            calculator.pushValue(5, clientId);
+            assertEquals(1, calculator.evictClient(clientId));
+            calculator.pushValue(6, clientId);
+            assertEquals(6, calculator.pop(clientId));
+        } finally {
+            executor.shutdown();
+            UnicastRemoteObject.unexportObject(calculator, true);
+        }
+    }
+
+    @Test
+    @DisplayName("Test idle stacks are compacted and inflated on their next use")
+    @Order(25)
+    void testCompactIdleStacks() throws Exception {
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        try {
+            String idle = "Client_testCompactIdleStacks_idle";
+            String busy = "Client_testCompactIdleStacks_busy";
+            for (int i = 0; i < 300; i++) {
+                calculator.pushValue(i % 2 == 0 ? i * 1000 : -i, idle);
+            }
+            calculator.pushValue(Integer.MIN_VALUE, idle);
+            calculator.pushValue(Integer.MAX_VALUE, idle);
+            calculator.pushValue(1, busy);
+
+            // The first sweep only clears the marks left by the pushes
+            assertEquals(0, calculator.compactIdleStacks());
+            calculator.pushValue(2, busy);
+            assertEquals(1, calculator.compactIdleStacks());
+
+            // Depth and snapshots are read from the compacted form
+            assertEquals(302, calculator.getClientDepth(idle));
+            assertEquals(302, copyValues(calculator, idle).length);
+            assertFalse(calculator.isEmpty(idle));
+
+            // The next pop inflates the values unchanged
+            assertEquals(Integer.MAX_VALUE, calculator.pop(idle));
+
+            // A push to a compacted stack inflates it before making room for the value
+            calculator.compactIdleStacks();
+            assertEquals(1, calculator.compactIdleStacks());
+            calculator.pushValue(Integer.MAX_VALUE, idle);
+            assertEquals(302, calculator.getClientDepth(idle));
+            assertEquals(Integer.MAX_VALUE, calculator.pop(idle));
+            assertEquals(Integer.MIN_VALUE, calculator.pop(idle));
+            for (int i = 299; i >= 0; i--) {
+                assertEquals(i % 2 == 0 ? i * 1000 : -i, calculator.pop(idle));
+            }
+            assertTrue(calculator.isEmpty(idle));
+            assertEquals(2, calculator.pop(busy));
+        } finally {
+            UnicastRemoteObject.unexportObject(calculator, true);
+            calculator.close();
+        }
+
+        // Publishing reads the top where it lives and leaves an idle stack idle and compacted
+        ClientStack stack = new ClientStack(new LongAdder());
+        stack.push(4);
+        stack.push(9);
+        assertFalse(stack.compactIfIdle());
+        stack.beginBatch();
+        stack.endBatch();
+        assertTrue(stack.compactIfIdle());
+        stack.beginBatch();
+        stack.endBatch();
+        assertTrue(stack.isCompacted());
+        assertEquals(2, ClientStack.depthOf(stack.published()));
+        assertEquals(9, ClientStack.topOf(stack.published()));
+    }
+
+    @Test
+    @DisplayName("Test deep stacks spill their bottom segments to disk and read them back")
+    @Order(26)
+    void testSpillDeepStacks() throws Exception {
+        Path dir = Files.createTempDirectory("calculator-spill-test");
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        try {
+            calculator.setSpill(dir, 1000);
+            String clientId = "Client_testSpillDeepStacks";
+            for (int i = 0; i < 10_500; i++) {
+                calculator.pushValue(i, clientId);
+            }
+            assertEquals(10_500, calculator.getClientDepth(clientId));
+            int[] values = copyValues(calculator, clientId);
+            for (int i = 0; i < values.length; i++) {
+                assertEquals(i, values[i]);
+            }
+
+            // A reduction over spilled values, then pops paging the segments back in
+            calculator.pushOperation("min", 3_000, clientId);
+            assertEquals(7_501, calculator.getClientDepth(clientId));
+            assertEquals(7_500, calculator.pop(clientId));
+            for (int i = 7_499; i >= 2_000; i--) {
+                assertEquals(i, calculator.pop(clientId));
+            }
+            calculator.pushValue(-1, clientId);
+            calculator.pushOperation("max", 2_001, clientId);
+            assertEquals(1_999, calculator.pop(clientId));
+            assertTrue(calculator.isEmpty(clientId));
+
+            // Evicting a spilled client deletes its file
+            for (int i = 0; i < 5_000; i++) {
+                calculator.pushValue(i, clientId);
+            }
+            assertEquals(5_000, calculator.evictClient(clientId));
+
+            // A handoff streams the spilled segments, and the new server spills them again as they arrive
+            for (int i = 0; i < 25_500; i++) {
+                calculator.pushValue(i * 3, clientId);
+            }
+            CalculatorImplementation target = new CalculatorImplementation();
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                target.setSpill(dir, 1000);
+                Future<?> received = executor.submit(() -> {
+                    try (Socket socket = server.accept()) {
+                        StateHandoff.receive(target, socket, () -> {
+                        });
+                    }
+                    return null;
+                });
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                    StateHandoff.send(calculator, socket, () -> {
+                    }, () -> {
+                    });
+                }
+                received.get(10, TimeUnit.SECONDS);
+                assertEquals(target.getClientUsage(clientId).getBytes(), calculator.getClientUsage(clientId).getBytes());
+                assertArrayEquals(copyValues(calculator, clientId), copyValues(target, clientId));
+                assertEquals(25_500, target.evictClient(clientId));
+                assertEquals(25_500, calculator.evictClient(clientId));
+            } finally {
+                executor.shutdownNow();
+                UnicastRemoteObject.unexportObject(target, true);
+                target.close();
+            }
+        } finally {
+            UnicastRemoteObject.unexportObject(calculator, true);
+            calculator.close();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    @DisplayName("Test isEmpty, size and peek read without locking or registering clients")
+    @Order(27)
+    void testLockFreeReads() throws Exception {
+        Calculator remote = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String remoteId = "Client_testLockFreeReads_remote";
+        remote.pushValue(4, remoteId);
+        remote.pushValue(9, remoteId);
+        assertEquals(2, remote.size(remoteId));
+        assertEquals(9, remote.peek(remoteId));
+
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        try {
+            // Probing unknown clients creates nothing
+            assertTrue(calculator.isEmpty("Client_testLockFreeReads_unknown"));
+            assertEquals(0, calculator.size("Client_testLockFreeReads_unknown"));
+            assertThrows(RemoteException.class, () -> calculator.peek("Client_testLockFreeReads_unknown"));
+            assertEquals(0, calculator.getStats().getClients());
+
+            // Readers never see the middle of a multi-step change
+            String clientId = "Client_testLockFreeReads";
+            calculator.pushValue(1, clientId);
+            calculator.pushValue(2, clientId);
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread writer = new Thread(() -> {
+                try {
+                    while (running.get()) {
+                        calculator.swap(clientId);
+                        calculator.pushOperation("max", 2, clientId);
+                        calculator.pushValue(1, clientId);
+                        calculator.swap(clientId);
+                    }
+                } catch (RemoteException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            for (int i = 0; i < 200_000; i++) {
+                int size = calculator.size(clientId);
+                assertTrue(size == 1 || size == 2, "size " + size);
+                int top = calculator.peek(clientId);
+                assertTrue(top == 1 || top == 2, "top " + top);
+            }
+            running.set(false);
+            writer.join();
+        } finally {
+            UnicastRemoteObject.unexportObject(calculator, true);
+            calculator.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Test scheduled and recurring operations run on the timer wheel and can be cancelled")
+    @Order(28)
+    void testScheduledOperations() throws Exception {
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", 1099);
+        String clientId = "Client_testScheduledOperations";
+
+        long once = calculator.schedule(List.of(StackOp.push(5), StackOp.push(7), StackOp.operation("max")), 50, clientId);
+        long recurring = calculator.scheduleAtFixedRate(List.of(StackOp.push(1)), 0, 20, clientId);
+        assertFalse(calculator.cancelScheduled(recurring, "Client_testScheduledOperations_other"));
+        Thread.sleep(300);
+        assertTrue(calculator.cancelScheduled(recurring, clientId));
+        assertFalse(calculator.cancelScheduled(recurring, clientId));
+        assertFalse(calculator.cancelScheduled(once, clientId));
+        // Let a run that started before the cancel finish
+        Thread.sleep(50);
+        int depth = calculator.size(clientId);
+        Thread.sleep(100);
+        assertEquals(depth, calculator.size(clientId));
+        // The one-shot result sits among the recurring pushes
+        assertTrue(calculator.popValues(depth, clientId).toArray().length > 5);
+        assertThrows(RemoteException.class, () -> calculator.schedule(List.of(), 10, clientId));
+
+        // In-process callers keep their list, later changes to it do not reach the scheduled steps
+        CalculatorImplementation local = new CalculatorImplementation();
+        try {
+            List<StackOp> steps = new ArrayList<>(List.of(StackOp.push(1)));
+            local.schedule(steps, 20, clientId);
+            steps.set(0, StackOp.push(2));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (local.isEmpty(clientId) && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, local.pop(clientId));
+            List<StackOp> withNull = new ArrayList<>();
+            withNull.add(null);
+            assertThrows(RemoteException.class, () -> local.schedule(withNull, 10, clientId));
+
+            // Each client has its own limit of waiting operations, evicting one frees its share
+            local.setMaxScheduled(3);
+            for (int i = 0; i < 3; i++) {
+                local.schedule(List.of(StackOp.push(i)), 60_000, clientId);
+            }
+            assertThrows(RemoteException.class, () -> local.schedule(List.of(StackOp.push(3)), 60_000, clientId));
+            long other = local.schedule(List.of(StackOp.push(3)), 60_000, clientId + "_other");
+            assertEquals(4, local.getScheduledCount());
+            local.evictClient(clientId);
+            assertEquals(1, local.getScheduledCount());
+            local.schedule(List.of(StackOp.push(4)), 60_000, clientId);
+            assertTrue(local.cancelScheduled(other, clientId + "_other"));
+            assertEquals(1, local.getScheduledCount());
+        } finally {
+            local.close();
+            UnicastRemoteObject.unexportObject(local, true);
+        }
+
+        // Timers across several wheel levels expire in deadline order, none early
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MICROSECONDS, "test-timer-wheel");
+        try {
+            int count = 2000;
+            long start = System.nanoTime();
+            long[] fired = new long[count];
+            CountDownLatch done = new CountDownLatch(count - 1);
+            TimerWheel.Timeout cancelled = null;
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                TimerWheel.Timeout timeout = wheel.schedule(() -> {
+                    fired[index] = System.nanoTime() - start;
+                    done.countDown();
+                }, index * 40L, TimeUnit.MICROSECONDS);
+                if (i == count / 2) {
+                    cancelled = timeout;
+                }
+            }
+            assertTrue(cancelled.cancel());
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i++) {
+                if (i != count / 2) {
+                    assertTrue(fired[i] >= TimeUnit.MICROSECONDS.toNanos(i * 40L), "timer " + i + " fired early");
+                }
+            }
+            assertEquals(0, fired[count / 2]);
+            assertEquals(0, wheel.pending());
+
+            // A task throwing an Error leaves the driver running for the timers after it
+            wheel.schedule(() -> {
+                throw new StackOverflowError("test");
+            }, 1, TimeUnit.MILLISECONDS);
+            CountDownLatch after = new CountDownLatch(1);
+            wheel.schedule(after::countDown, 20, TimeUnit.MILLISECONDS);
+            assertTrue(after.await(5, TimeUnit.SECONDS));
+        } finally {
+            wheel.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Test that costly calls run in their own bounded lanes")
+    @Order(29)
+    void testPriorityLanes() throws Exception {
+        // An uncapped fast lane, one bulk thread with one queued call, three slow calls at once
+        // on their own threads, bulk from 100 values
+        PriorityLanes lanes = new PriorityLanes(0, 0, 1, 1, 0, 3, 100);
+        CalculatorImplementation calculator = new CalculatorImplementation(new AdmissionController(), null, lanes);
+        String clientId = "Client_testPriorityLanes";
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            int[] values = new int[1000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i + 1;
+            }
+            calculator.pushValues(new PackedValues(values), clientId);
+            calculator.pushValue(5000, clientId);
+            calculator.pushOperation("max", clientId);
+            assertEquals(5000, calculator.peek(clientId));
+            calculator.pushValue(7, clientId);
+            calculator.pushValue(8, clientId);
+
+            // Three delayed pops fill the slow lane and the one after is rejected
+            Future<Integer> first = executor.submit(() -> calculator.delayPop(400, clientId));
+            Future<Integer> second = executor.submit(() -> calculator.delayPop(400, clientId));
+            Thread.sleep(100);
+            Future<Integer> third = executor.submit(() -> calculator.delayPop(400, clientId));
+            Thread.sleep(100);
+            assertThrows(AdmissionRejectedException.class, () -> calculator.delayPop(10, clientId));
+            // Cheap calls do not wait behind the slow lane
+            long start = System.nanoTime();
+            calculator.pushValue(9, clientId);
+            assertEquals(9, calculator.pop(clientId));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+            int popped = first.get(5, TimeUnit.SECONDS) + second.get(5, TimeUnit.SECONDS) + third.get(5, TimeUnit.SECONDS);
+            assertEquals(8 + 7 + 5000, popped);
+            // Slow calls block their own thread only, the lane starts none
+            assertTrue(Thread.getAllStackTraces().keySet().stream()
+                    .noneMatch(thread -> thread.getName().startsWith("calculator-slow-lane-")));
+            assertTrue(calculator.isEmpty(clientId));
+
+            List<LaneStats> stats = calculator.getLaneStats();
+            assertEquals(3, stats.size());
+            LaneStats fast = stats.get(0);
+            LaneStats bulk = stats.get(1);
+            LaneStats slow = stats.get(2);
+            assertEquals("fast", fast.getLane());
+            assertEquals(5, fast.getCalls());
+            assertEquals(0, fast.getQueueMicros());
+            assertEquals(2, bulk.getCalls());
+            assertEquals(3, slow.getCalls());
+            assertEquals(1, slow.getRejected());
+            assertEquals(0, slow.getQueued());
+            assertEquals(0, slow.getQueueP99Micros());
+            assertTrue(slow.getLatencyP99Micros() >= 400_000);
+        } finally {
+            executor.shutdown();
+            calculator.close();
+            UnicastRemoteObject.unexportObject(calculator, true);
+        }
+
+        // A thread-less lane's queue caps the calls running in it, a lane with threads needs a queue
+        PriorityLanes capped = new PriorityLanes(0, 1, 1, 1, 0, 1, 100);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService holder = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> held = holder.submit(() -> capped.run(PriorityLanes.Lane.FAST, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertThrows(AdmissionRejectedException.class, () -> capped.run(PriorityLanes.Lane.FAST, () -> 2));
+            release.countDown();
+            assertEquals(1, held.get(5, TimeUnit.SECONDS));
+            assertEquals(3, capped.run(PriorityLanes.Lane.FAST, () -> 3));
+        } finally {
+            holder.shutdown();
+            capped.close();
+        }
+        assertThrows(IllegalArgumentException.class, () -> new PriorityLanes(1, 0, 1, 1, 0, 1, 100));
+        assertThrows(IllegalArgumentException.class, () -> new PriorityLanes(0, -1, 1, 1, 0, 1, 100));
+        CalculatorImplementation unlaned = new CalculatorImplementation();
+        assertTrue(unlaned.getLaneStats().isEmpty());
+        UnicastRemoteObject.unexportObject(unlaned, true);
+    }
+
+    @Test
+    @DisplayName("Test the warm-up calls through RMI past the rate limit and leaves no trace behind")
+    @Order(30)
+    void testWarmupLeavesNoTrace() throws Exception {
+        AtomicInteger remotePushes = new AtomicInteger();
+        AtomicInteger localPushes = new AtomicInteger();
+        // Ten calls a second per client, which would reject nearly all of the warm-up's calls
+        AdmissionController admission = new AdmissionController(10, 1, 0, 0);
+        CalculatorImplementation calculator = new CalculatorImplementation(admission, null, new PriorityLanes()) {
+            @Override
+            public void pushValue(int val, String clientID) throws RemoteException {
+                super.pushValue(val, clientID);
+                (Thread.currentThread().getName().startsWith("RMI TCP Connection") ? remotePushes : localPushes)
+                        .incrementAndGet();
+            }
+        };
+        try {
+            new CalculatorWarmup(calculator).run();
+            assertEquals(0, localPushes.get());
+            assertTrue(remotePushes.get() >= 3 * 256 * 13, "Warm-up pushes were rejected: " + remotePushes.get());
+            CalculatorStats stats = calculator.getStats();
+            assertEquals(0, stats.getClients());
+            assertEquals(0, stats.getTotalValues());
+            assertEquals(0, stats.getTotalCalls());
+            assertTrue(calculator.getTopClientsByCalls(10, 60).isEmpty());
+            assertTrue(calculator.getTopClientsByValues(10, 60).isEmpty());
+            for (LaneStats lane : calculator.getLaneStats()) {
+                assertEquals(0, lane.getCalls());
+            }
+
+            // Calls after the warm-up are counted from zero
+            calculator.pushValue(1, "Client_testWarmupLeavesNoTrace");
+            assertEquals(1, calculator.getStats().getTotalCalls());
+            assertEquals("Client_testWarmupLeavesNoTrace", calculator.getTopClientsByCalls(10, 60).get(0).getClientID());
+        } finally {
+            calculator.close();
+            UnicastRemoteObject.unexportObject(calculator, true);
+        }
+    }
+
+    @Test
+    @DisplayName("Test a handoff resends only the new values of a deep stack growing through it")
+    @Order(31)
+    void testHandoffDeltas() throws Exception {
+        Path dir = Files.createTempDirectory("calculator-handoff-test");
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        AtomicLong restored = new AtomicLong();
+        CalculatorImplementation target = new CalculatorImplementation() {
+            @Override
+            void restoreValues(String clientID, int[] values) {
+                restored.addAndGet(values.length);
+                super.restoreValues(clientID, values);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            calculator.setSpill(dir, 100_000);
+            target.setSpill(dir, 100_000);
+            String clientId = "Client_testHandoffDeltas";
+            int[] bulk = new int[100_000];
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < bulk.length; i++) {
+                    bulk[i] = round * bulk.length + i;
+                }
+                calculator.pushValues(new PackedValues(bulk), clientId);
+            }
+            int depth = calculator.getClientDepth(clientId);
+
+            // Keep growing and shrinking the top of the stack until the handoff moves it
+            AtomicInteger changes = new AtomicInteger();
+            Future<?> pusher = executor.submit(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        calculator.pushValue(i, clientId);
+                        calculator.pushValue(-i, clientId);
+                        calculator.pop(clientId);
+                        changes.incrementAndGet();
+                    }
+                } catch (StateMovedException e) {
+                    return null;
+                }
+            });
+            try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                Future<?> received = executor.submit(() -> {
+                    try (Socket socket = server.accept()) {
+                        StateHandoff.receive(target, socket, () -> {
+                        });
+                    }
+                    return null;
+                });
+                while (changes.get() < 100) {
+                    Thread.sleep(1);
+                }
+                long heldMillis;
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+                    heldMillis = StateHandoff.send(calculator, socket, () -> {
+                    }, () -> {
+                    });
+                }
+                received.get(30, TimeUnit.SECONDS);
+                pusher.get(10, TimeUnit.SECONDS);
+
+                // The deep stack was streamed once, every later round only carried its top
+                assertArrayEquals(copyValues(calculator, clientId), copyValues(target, clientId));
+                assertTrue(restored.get() < depth + 2L * changes.get(), "Values resent: " + restored.get());
+                assertTrue(heldMillis < 100, "Held for " + heldMillis + " ms");
+            }
+        } finally {
+            executor.shutdownNow();
+            target.close();
+            calculator.close();
+            UnicastRemoteObject.unexportObject(target, true);
+            UnicastRemoteObject.unexportObject(calculator, true);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> file.toFile().delete());
+        }
+        Files.delete(dir);
+    }
+}
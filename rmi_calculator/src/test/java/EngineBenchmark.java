@@ -0,0 +1,99 @@
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the locking engine with the partitioned and combining engines as the number of
+ * calling threads grows. The calculator is called directly, without RMI, so that only the stack
+ * operations and the hand-over between threads are measured. Each call pushes a value to a
+ * random client and pops it again; few clients means many callers on the same stacks, and a
+ * single client is the case the combining engine is meant for.
+ *
+ * Usage: java -cp target/classes:target/test-classes EngineBenchmark [clients] [seconds] [threads...]
+ */
+public class EngineBenchmark {
+    private static final String[] ENGINES = {"locking", "partitioned", "combining"};
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        Set<Integer> threadCounts = new TreeSet<>();
+        for (int i = 2; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.addAll(List.of(1, 2, 4, cores, cores * 2, cores * 8));
+        }
+
+        // Unreported rounds so that no engine pays for class loading and compilation
+        for (String engine : ENGINES) {
+            run(create(engine, cores), clients, cores, 1);
+        }
+
+        System.out.printf("%d clients, %d cores%n", clients, cores);
+        for (int threads : threadCounts) {
+            List<String> results = new ArrayList<>();
+            for (String engine : ENGINES) {
+                results.add(String.format("%s %,.0f ops/s", engine, run(create(engine, cores), clients, threads, seconds)));
+            }
+            System.out.printf("%3d threads: %s%n", threads, String.join(", ", results));
+        }
+        System.exit(0);
+    }
+
+    private static StackEngine create(String engine, int cores) {
+        switch (engine) {
+            case "partitioned":
+                return new PartitionedEngine(cores);
+            case "combining":
+                return new CombiningEngine();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Run the push and pop loop on a fresh calculator
+     *
+     * @return the operations per second, a push and a pop counting as two
+     */
+    private static double run(StackEngine engine, int clients, int threads, int seconds) throws Exception {
+        CalculatorImplementation calculator = new CalculatorImplementation(new AdmissionController(), engine);
+        String[] ids = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            ids[i] = "bench-" + i;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                while (System.nanoTime() < end) {
+                    String clientId = ids[random.nextInt(ids.length)];
+                    calculator.pushValue(random.nextInt(), clientId);
+                    calculator.pop(clientId);
+                    ops += 2;
+                }
+                return ops;
+            }));
+        }
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        executor.shutdown();
+        UnicastRemoteObject.unexportObject(calculator, true);
+        calculator.close();
+        return total / (double) seconds;
+    }
+}
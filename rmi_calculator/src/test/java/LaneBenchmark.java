@@ -0,0 +1,113 @@
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of cheap pushes and pops while other callers reduce deep stacks,
+ * with every call on its own thread as RMI runs them and with priority lanes. The bulk callers
+ * each push a deep stack in one call and reduce it with one whole-stack operation; without lanes
+ * all of them compete with the cheap calls for the cores, with lanes they share the bulk lane.
+ * Cheap calls are timed from when they were due after the caller's pause, so the time spent
+ * waiting for a core counts. The calculator is called directly, without RMI.
+ *
+ * Usage: java -cp target/classes:target/test-classes LaneBenchmark [bulkCallers] [depth] [seconds]
+ */
+public class LaneBenchmark {
+    private static final int CHEAP_CALLERS = 8;
+    // Pause of the cheap callers between calls, so that they measure latency rather than saturate
+    private static final long THINK_MICROS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int bulkCallers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // Unreported rounds so that neither mode pays for class loading and compilation
+        run(null, bulkCallers, depth, 2);
+        run(new PriorityLanes(), bulkCallers, depth, 2);
+
+        System.out.printf("%d cheap callers, %d bulk callers reducing %,d values, %d cores%n",
+                CHEAP_CALLERS, bulkCallers, depth, Runtime.getRuntime().availableProcessors());
+        System.out.println("no lanes: " + run(null, bulkCallers, depth, seconds));
+        PriorityLanes lanes = new PriorityLanes();
+        System.out.println("lanes:    " + run(lanes, bulkCallers, depth, seconds));
+        for (LaneStats stats : lanes.getStats()) {
+            System.out.println("  " + stats);
+        }
+        System.exit(0);
+    }
+
+    private static String run(PriorityLanes lanes, int bulkCallers, int depth, int seconds) throws Exception {
+        CalculatorImplementation calculator = new CalculatorImplementation(new AdmissionController(), null, lanes);
+        ExecutorService executor = Executors.newFixedThreadPool(CHEAP_CALLERS + bulkCallers);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        int[] values = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            values[i] = i * 7 + 1;
+        }
+        List<Future<Long>> reductions = new ArrayList<>();
+        for (int t = 0; t < bulkCallers; t++) {
+            String clientId = "bulk-" + t;
+            reductions.add(executor.submit(() -> {
+                long count = 0;
+                while (System.nanoTime() < end) {
+                    try {
+                        calculator.pushValues(new PackedValues(values), clientId);
+                        calculator.pushOperation("lcm", clientId);
+                        calculator.pop(clientId);
+                        count++;
+                    } catch (AdmissionRejectedException e) {
+                        // The bulk lane is full, which is the point of bounding it
+                        calculator.evictClient(clientId);
+                    }
+                }
+                return count;
+            }));
+        }
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int t = 0; t < CHEAP_CALLERS; t++) {
+            String clientId = "cheap-" + t;
+            results.add(executor.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                long due = System.nanoTime();
+                while (System.nanoTime() < end) {
+                    calculator.pushValue(count, clientId);
+                    calculator.pop(clientId);
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    // Measured from when the call was due, so time spent waiting for a core counts
+                    long now = System.nanoTime();
+                    latencies[count++] = now - due;
+                    due = now + TimeUnit.MICROSECONDS.toNanos(THINK_MICROS);
+                    TimeUnit.MICROSECONDS.sleep(THINK_MICROS);
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int offset = all.length;
+            all = Arrays.copyOf(all, offset + latencies.length);
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+        }
+        long reduced = 0;
+        for (Future<Long> reduction : reductions) {
+            reduced += reduction.get();
+        }
+        executor.shutdown();
+        calculator.close();
+        UnicastRemoteObject.unexportObject(calculator, true);
+        Arrays.sort(all);
+        return String.format("cheap push+pop (us) median=%.1f p99=%.1f p99.9=%.1f, %,.1f reductions/s",
+                all[all.length / 2] / 1000.0, all[(int) (all.length * 0.99)] / 1000.0,
+                all[(int) (all.length * 0.999)] / 1000.0, reduced / (double) seconds);
+    }
+}
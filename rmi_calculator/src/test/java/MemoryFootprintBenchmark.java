@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the heap retained per client and per stored value as the number of clients grows,
+ * as the baseline for changes to how stacks are stored. Each configuration fills a fresh
+ * calculator with clients holding the same number of values, then reads the used heap after
+ * full collections and compares it with the heap before filling. The client ids are created
+ * while filling, so their strings count towards the clients as they do on a server. The heap
+ * is measured again after two compaction sweeps, the form idle stacks take over time.
+ * Depth 0 clients pushed one value and popped it again, so they show the cost of a client
+ * alone; the marginal cost of a value is the difference to them divided by the depth.
+ * Configurations that would not fit in the heap, judged from the smaller client counts at
+ * the same depth, are skipped.
+ *
+ * Usage: java -Xmx4g -cp target/classes:target/test-classes MemoryFootprintBenchmark
+ *        [clients,...] [depths,...] [report.csv]
+ */
+public class MemoryFootprintBenchmark {
+    private static final String CSV_HEADER =
+            "clients,depth,bytes_per_client,bytes_per_value,marginal_bytes_per_value,compacted_bytes_per_client,fill_millis";
+    // Heap left free for the collector and the measurement itself
+    private static final double HEAP_HEADROOM = 0.15;
+
+    public static void main(String[] args) throws Exception {
+        int[] clientCounts = parse(args.length > 0 ? args[0] : "10000,100000,1000000,10000000");
+        int[] depths = parse(args.length > 1 ? args[1] : "0,1,10,100");
+        String reportFile = args.length > 2 ? args[2] : null;
+
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        List<String> gcs = new ArrayList<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs.add(gc.getName());
+        }
+        System.out.printf("java %s, max heap %,d MB, collectors %s%n",
+                System.getProperty("java.version"), maxHeap >> 20, String.join("/", gcs));
+
+        // Unreported round so that no configuration pays for class loading and compilation
+        measure(Math.min(clientCounts[0], 10_000), 10);
+
+        List<String> csv = new ArrayList<>();
+        csv.add(CSV_HEADER);
+        System.out.printf("%10s %6s %12s %12s %12s %12s %10s%n",
+                "clients", "depth", "B/client", "B/value", "marginal", "compacted", "fill ms");
+        // Bytes per client of each client count at depth 0, for the marginal cost of values
+        double[] emptyClient = new double[clientCounts.length];
+        for (int d = 0; d < depths.length; d++) {
+            int depth = depths[d];
+            double perClient = 0;
+            for (int c = 0; c < clientCounts.length; c++) {
+                int clients = clientCounts[c];
+                long free = maxHeap - usedHeap();
+                if (perClient > 0 && perClient * clients > free * (1 - HEAP_HEADROOM)) {
+                    System.out.printf("%10d %6d skipped, needs about %,d MB of the %,d MB free%n",
+                            clients, depth, (long) (perClient * clients) >> 20, free >> 20);
+                    continue;
+                }
+                Result result;
+                try {
+                    result = measure(clients, depth);
+                } catch (OutOfMemoryError e) {
+                    System.out.printf("%10d %6d out of memory%n", clients, depth);
+                    break;
+                }
+                perClient = result.bytes / (double) clients;
+                if (depth == 0) {
+                    emptyClient[c] = perClient;
+                }
+                double perValue = depth == 0 ? 0 : result.bytes / ((double) clients * depth);
+                double marginal = depth == 0 || emptyClient[c] == 0 ? 0 : (perClient - emptyClient[c]) / depth;
+                double compacted = result.compactedBytes / (double) clients;
+                System.out.printf("%10d %6d %12.1f %12.2f %12.2f %12.1f %10d%n",
+                        clients, depth, perClient, perValue, marginal, compacted, result.fillMillis);
+                csv.add(String.format("%d,%d,%.1f,%.2f,%.2f,%.1f,%d",
+                        clients, depth, perClient, perValue, marginal, compacted, result.fillMillis));
+            }
+        }
+        if (reportFile != null) {
+            write(reportFile, csv);
+            System.out.println("Report written to " + reportFile);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Fill a fresh calculator and measure the heap it retains, in use and compacted
+     */
+    private static Result measure(int clients, int depth) throws Exception {
+        long empty = usedHeap();
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        Result result = new Result();
+        try {
+            long start = System.nanoTime();
+            fill(calculator, clients, depth);
+            result.fillMillis = (System.nanoTime() - start) / 1_000_000;
+            result.bytes = usedHeap() - empty;
+            // The first sweep clears the touched flags left by filling, the second compacts
+            calculator.compactIdleStacks();
+            calculator.compactIdleStacks();
+            result.compactedBytes = usedHeap() - empty;
+        } finally {
+            calculator.close();
+            UnicastRemoteObject.unexportObject(calculator, true);
+        }
+        return result;
+    }
+
+    private static void fill(CalculatorImplementation calculator, int clients, int depth) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] values = new int[depth];
+        for (int i = 0; i < clients; i++) {
+            String clientId = "client-" + i;
+            if (depth == 0) {
+                calculator.pushValue(1, clientId);
+                calculator.pop(clientId);
+                continue;
+            }
+            // A random walk, so compaction sees the small deltas of a typical stack
+            int value = 100_000;
+            for (int v = 0; v < depth; v++) {
+                value += random.nextInt(-500, 500);
+                values[v] = value;
+            }
+            if (depth == 1) {
+                calculator.pushValue(values[0], clientId);
+            } else {
+                calculator.pushValues(new PackedValues(values), clientId);
+            }
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        // Collect until the heap stops shrinking, a single request may leave garbage behind
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= used - (used >> 10) && i >= 2) {
+                return Math.min(used, now);
+            }
+            used = Math.min(used, now);
+        }
+        return used;
+    }
+
+    private static int[] parse(String list) {
+        String[] parts = list.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            numbers[i] = Integer.parseInt(parts[i].trim().replace("_", ""));
+        }
+        return numbers;
+    }
+
+    private static void write(String file, List<String> lines) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        }
+    }
+
+    private static final class Result {
+        long bytes;
+        long compactedBytes;
+        long fillMillis;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a connection-heavy workload against one listener and against several endpoints.
+ * RMI normally keeps connections open for 15 seconds, so idle connections are closed after
+ * one millisecond here and every client pauses between calls. Nearly every call then opens
+ * a new connection, which has to go through the accept thread of the endpoint's port.
+ *
+ * Usage: java -cp target/classes:target/test-classes ShardingBenchmark [endpoints] [threads] [seconds]
+ */
+public class ShardingBenchmark {
+    private static final int PORT = 1299;
+    private static final long THINK_MILLIS = 2;
+
+    public static void main(String[] args) throws Exception {
+        // Must be set before the RMI transport classes are loaded
+        System.setProperty("sun.rmi.transport.connectionTimeout", "1");
+        int endpoints = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // Unreported round so that neither mode pays for class loading and compilation
+        run(null, PORT + 2, endpoints, threads, 2);
+        run("single listener", PORT, 0, threads, seconds);
+        run(endpoints + " endpoints", PORT + 1, endpoints, threads, seconds);
+        System.exit(0);
+    }
+
+    private static void run(String mode, int port, int endpoints, int threads, int seconds) throws Exception {
+        CalculatorServer server = new CalculatorServer();
+        server.setLocalAccess(false);
+        server.setEndpoints(endpoints);
+        server.run(port);
+
+        // One shared handle, which spreads the clients over the endpoints by their ID
+        Calculator calculator = CalculatorClientFactory.getCalculator("127.0.0.1", port);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            String clientId = "bench-" + i;
+            results.add(executor.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    calculator.isEmpty(clientId);
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                    Thread.sleep(THINK_MILLIS);
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        long[] all = new long[0];
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int offset = all.length;
+            all = Arrays.copyOf(all, offset + latencies.length);
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+        }
+        executor.shutdown();
+        if (mode != null) {
+            report(mode, all, seconds);
+        }
+    }
+
+    private static void report(String mode, long[] nanos, int seconds) {
+        Arrays.sort(nanos);
+        System.out.printf("%s: %.0f calls/s, latency (us) median=%d p99=%d max=%d%n",
+                mode, nanos.length / (double) seconds,
+                nanos[nanos.length / 2] / 1000, nanos[(int) (nanos.length * 0.99)] / 1000,
+                nanos[nanos.length - 1] / 1000);
+    }
+}
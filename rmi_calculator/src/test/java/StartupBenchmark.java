@@ -0,0 +1,102 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from launching a CalculatorServer process to the first successful call,
+ * with and without the class data sharing archive built by "make cds-archive".
+ *
+ * Usage: java -cp target/classes:target/test-classes StartupBenchmark [runs] [archive]
+ */
+public class StartupBenchmark {
+    static final int PORT = 1199;
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Path archive = Paths.get(args.length > 1 ? args[1] : "target/calculator.jsa");
+
+        // Load the client side RMI classes before timing anything
+        probe();
+
+        report("default", measure(runs, List.of()));
+        if (Files.exists(archive)) {
+            report("appcds", measure(runs, List.of("-XX:SharedArchiveFile=" + archive, "-Xshare:auto")));
+        } else {
+            System.out.println("appcds: skipped, " + archive + " not found (run make cds-archive)");
+        }
+    }
+
+    private static long[] measure(int runs, List<String> jvmOptions) throws Exception {
+        long[] millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            Process server = launch(jvmOptions);
+            millis[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            stop(server);
+        }
+        return millis;
+    }
+
+    /**
+     * Launch a server process and wait until it answers its first call
+     *
+     * @param jvmOptions extra options for the server JVM
+     * @return the running server process
+     */
+    static Process launch(List<String> jvmOptions) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("calculator.serverClasspath", "target" + File.separator + "classes"));
+        command.add("CalculatorServer");
+        command.add(String.valueOf(PORT));
+
+        Process server = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            while (!probe()) {
+                if (!server.isAlive()) {
+                    throw new IllegalStateException("Server exited with " + server.exitValue());
+                }
+                Thread.sleep(1);
+            }
+        } catch (Exception e) {
+            stop(server);
+            throw e;
+        }
+        return server;
+    }
+
+    static void stop(Process server) throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+    }
+
+    /**
+     * Try one call against the server
+     *
+     * @return true if the call succeeded
+     */
+    private static boolean probe() {
+        try {
+            Calculator calculator = (Calculator) LocateRegistry.getRegistry("127.0.0.1", PORT).lookup("Calculator");
+            calculator.isEmpty("startup-probe");
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void report(String mode, long[] millis) {
+        Arrays.sort(millis);
+        System.out.printf("%s: time to first call (ms) min=%d median=%d max=%d over %d runs%n",
+                mode, millis[0], millis[millis.length / 2], millis[millis.length - 1], millis.length);
+    }
+}
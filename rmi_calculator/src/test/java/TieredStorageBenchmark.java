@@ -0,0 +1,101 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the heap held per idle client before and after its stack is compacted, and the
+ * latency of the first pop on a compacted stack against a pop on a stack still in use.
+ * Each client holds a few hundred values drawn as a random walk, outside the Integer cache.
+ *
+ * Usage: java -cp target/classes:target/test-classes TieredStorageBenchmark [clients] [values]
+ */
+public class TieredStorageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int values = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+
+        CalculatorImplementation calculator = new CalculatorImplementation();
+        String[] ids = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            ids[i] = "bench-" + i;
+        }
+        // Warm up the push, pop and compaction paths on clients dropped again afterwards
+        for (int round = 0; round < 5; round++) {
+            fill(calculator, ids, Math.min(clients, 2000), values);
+            calculator.compactIdleStacks();
+            calculator.compactIdleStacks();
+            firstPops(calculator, ids, Math.min(clients, 2000));
+            for (String id : ids) {
+                calculator.evictClient(id);
+            }
+        }
+
+        long empty = usedHeap();
+        fill(calculator, ids, clients, values);
+        long hot = usedHeap();
+        long[] hotPops = firstPops(calculator, ids, clients);
+        // Put back the popped values, then let two sweeps pass without calls
+        for (String id : ids) {
+            calculator.pushValue(1000, id);
+        }
+        calculator.compactIdleStacks();
+        long start = System.nanoTime();
+        int compacted = calculator.compactIdleStacks();
+        long sweepMillis = (System.nanoTime() - start) / 1_000_000;
+        long cold = usedHeap();
+        long[] coldPops = firstPops(calculator, ids, clients);
+
+        System.out.printf("%d clients with %d values, %d compacted in %d ms%n", clients, values, compacted, sweepMillis);
+        System.out.printf("heap per idle client: %d bytes in use, %d bytes compacted%n",
+                (hot - empty) / clients, (cold - empty) / clients);
+        report("pop on a stack in use", hotPops);
+        report("first pop after compaction", coldPops);
+        UnicastRemoteObject.unexportObject(calculator, true);
+        calculator.close();
+    }
+
+    private static void fill(CalculatorImplementation calculator, String[] ids, int clients, int values) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < clients; i++) {
+            int value = 100_000;
+            for (int v = 0; v < values; v++) {
+                value += random.nextInt(-500, 500);
+                calculator.pushValue(value, ids[i]);
+            }
+        }
+    }
+
+    /**
+     * Pop one value from each client and time every pop
+     *
+     * @return the latencies in nanoseconds
+     */
+    private static long[] firstPops(CalculatorImplementation calculator, String[] ids, int clients) throws Exception {
+        long[] nanos = new long[clients];
+        for (int i = 0; i < clients; i++) {
+            long start = System.nanoTime();
+            calculator.pop(ids[i]);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void report(String mode, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("%s: latency (us) median=%.1f p99=%.1f max=%.1f%n", mode,
+                nanos[nanos.length / 2] / 1000.0, nanos[(int) (nanos.length * 0.99)] / 1000.0,
+                nanos[nanos.length - 1] / 1000.0);
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the timer wheel with a million pending timers against a ScheduledThreadPoolExecutor,
+ * whose heap costs O(log n) per insert and expiry: the cost of scheduling and cancelling while
+ * the timers are pending, and how late timers run when a million of them expire within a few
+ * seconds.
+ *
+ * Usage: java -cp target/classes:target/test-classes TimerWheelBenchmark [timers]
+ */
+public class TimerWheelBenchmark {
+
+    interface Timers {
+        Object schedule(Runnable task, long delayMillis);
+
+        void cancel(Object timer);
+
+        void close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        // Unreported round so that neither implementation pays for class loading and compilation
+        run(null, wheel(), timers / 10);
+        run(null, executor(), timers / 10);
+
+        run("timer wheel", wheel(), timers);
+        run("scheduled executor", executor(), timers);
+        System.exit(0);
+    }
+
+    private static Timers wheel() {
+        TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, "bench-timer-wheel");
+        return new Timers() {
+            public Object schedule(Runnable task, long delayMillis) {
+                return wheel.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            public void cancel(Object timer) {
+                ((TimerWheel.Timeout) timer).cancel();
+            }
+
+            public void close() {
+                wheel.close();
+            }
+        };
+    }
+
+    private static Timers executor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        return new Timers() {
+            public Object schedule(Runnable task, long delayMillis) {
+                return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            public void cancel(Object timer) {
+                ((ScheduledFuture<?>) timer).cancel(false);
+            }
+
+            public void close() {
+                executor.shutdownNow();
+            }
+        };
+    }
+
+    private static void run(String mode, Timers implementation, int count) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Runnable noop = () -> { };
+
+        // A million timers far in the future stay pending throughout
+        Object[] pending = new Object[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            pending[i] = implementation.schedule(noop, random.nextLong(600_000, 3_600_000));
+        }
+        long insertNanos = System.nanoTime() - start;
+
+        // Then a million more expiring within two seconds from now
+        long[] lateness = new long[count];
+        CountDownLatch expired = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            long delay = 500 + random.nextLong(2000);
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            implementation.schedule(() -> {
+                lateness[index] = System.nanoTime() - due;
+                expired.countDown();
+            }, delay);
+        }
+        expired.await();
+
+        start = System.nanoTime();
+        for (Object timer : pending) {
+            implementation.cancel(timer);
+        }
+        long cancelNanos = System.nanoTime() - start;
+        implementation.close();
+
+        if (mode != null) {
+            Arrays.sort(lateness);
+            System.out.printf("%s, %d pending: schedule %.0f ns, cancel %.0f ns, lateness (ms) median=%.1f p99=%.1f max=%.1f%n",
+                    mode, count, insertNanos / (double) count, cancelNanos / (double) count,
+                    lateness[count / 2] / 1e6, lateness[(int) (count * 0.99)] / 1e6, lateness[count - 1] / 1e6);
+        }
+    }
+}
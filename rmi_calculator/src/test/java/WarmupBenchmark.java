@@ -0,0 +1,66 @@
+import java.rmi.registry.LocateRegistry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of the first calls after a deploy with and without the warm-up phase.
+ * Each run launches a fresh server process and measures every call from the moment the
+ * calculator is bound, which is when real clients would start sending traffic.
+ *
+ * Usage: java -cp target/classes:target/test-classes WarmupBenchmark [runs] [calls]
+ */
+public class WarmupBenchmark {
+    private static final String[] OPERATORS = {"min", "max", "lcm", "gcd"};
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+
+        for (int run = 1; run <= runs; run++) {
+            measure("cold  ", List.of(), calls);
+            measure("warmed", List.of("-Dcalculator.warmup=true"), calls);
+        }
+    }
+
+    private static void measure(String mode, List<String> jvmOptions, int calls) throws Exception {
+        long start = System.nanoTime();
+        Process server = StartupBenchmark.launch(jvmOptions);
+        long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        try {
+            Calculator calculator = (Calculator) LocateRegistry.getRegistry("127.0.0.1", StartupBenchmark.PORT)
+                    .lookup("Calculator");
+            String clientId = "warmup-benchmark";
+            long[] nanos = new long[calls];
+            for (int i = 0; i < calls; i++) {
+                long callStart = System.nanoTime();
+                switch (i % 4) {
+                    case 0:
+                    case 1:
+                        calculator.pushValue(i, clientId);
+                        break;
+                    case 2:
+                        calculator.pushOperation(OPERATORS[(i / 4) % OPERATORS.length], clientId);
+                        break;
+                    default:
+                        calculator.pop(clientId);
+                        break;
+                }
+                nanos[i] = System.nanoTime() - callStart;
+            }
+            long[] first = Arrays.copyOf(nanos, Math.min(1000, calls));
+            Arrays.sort(first);
+            Arrays.sort(nanos);
+            System.out.printf("%s ready=%dms first 1000 calls: p50=%dus p99=%dus max=%dus"
+                            + " | all %d calls: p50=%dus p99=%dus p99.9=%dus%n",
+                    mode, readyMillis, micros(first, 0.5), micros(first, 0.99), first[first.length - 1] / 1000,
+                    calls, micros(nanos, 0.5), micros(nanos, 0.99), micros(nanos, 0.999));
+        } finally {
+            StartupBenchmark.stop(server);
+        }
+    }
+
+    private static long micros(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * quantile)] / 1000;
+    }
+}